@@ -1,5 +1,6 @@
 package org.ejectfb.ejectcloud;
 
+import org.ejectfb.ejectcloud.service.FileCatalogService;
 import org.ejectfb.ejectcloud.service.UserService;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
@@ -82,6 +83,55 @@ public class EjectCloudApplication {
             writer.write("# Upload timeout (milliseconds)\n");
             writer.write("ejectcloud.upload.timeout=10800000\n");
             writer.write("\n");
+            writer.write("# Resumable uploads: chunk size (bytes) and hours an idle session is kept\n");
+            writer.write("ejectcloud.upload.chunk-size=8388608\n");
+            writer.write("ejectcloud.upload.session-hours=24\n");
+            writer.write("\n");
+            writer.write("# Deduplicating storage: identical uploads are stored once in Data/_blobs\n");
+            writer.write("# and linked into user folders (requires hard link support)\n");
+            writer.write("ejectcloud.storage.dedup=false\n");
+            writer.write("\n");
+            writer.write("# Downloads: Tomcat sendfile for files larger than the threshold (bytes).\n");
+            writer.write("# Only used on connectors without TLS (e.g. behind a TLS-terminating proxy)\n");
+            writer.write("ejectcloud.download.sendfile=true\n");
+            writer.write("ejectcloud.download.sendfile-threshold=49152\n");
+            writer.write("\n");
+            writer.write("# Folder archives: threads compressing ZIP entries (0 = number of CPU cores)\n");
+            writer.write("ejectcloud.archive.threads=0\n");
+            writer.write("# Stream folder archives straight to the client instead of building a temp ZIP\n");
+            writer.write("# (no disk space needed and no 10GB limit, but no progress and no Content-Length)\n");
+            writer.write("ejectcloud.archive.streaming=false\n");
+            writer.write("# Archive jobs: concurrent jobs overall and per user, queue length,\n");
+            writer.write("# and a shared read limit for archived files in MB/s (0 = unlimited)\n");
+            writer.write("ejectcloud.archive.workers=2\n");
+            writer.write("ejectcloud.archive.per-user-jobs=1\n");
+            writer.write("ejectcloud.archive.max-queued=50\n");
+            writer.write("ejectcloud.archive.read-limit-mb=0\n");
+            writer.write("# Finished archives are reused while the folder is unchanged: total cache\n");
+            writer.write("# size in MB (0 = no cache) and hours an unused archive is kept\n");
+            writer.write("ejectcloud.archive.cache-max-mb=10240\n");
+            writer.write("ejectcloud.archive.cache-hours=24\n");
+            writer.write("# Progress events (SSE): how often pending updates are pushed in ms,\n");
+            writer.write("# connection lifetime in ms (the browser reconnects) and connections per user.\n");
+            writer.write("# Tabs of one browser share a single stream; keep max-per-user below the\n");
+            writer.write("# browser limit of 6 connections per origin\n");
+            writer.write("ejectcloud.events.interval-ms=500\n");
+            writer.write("ejectcloud.events.timeout-ms=1800000\n");
+            writer.write("ejectcloud.events.max-per-user=4\n");
+            writer.write("# User metadata: changes are written in the background every\n");
+            writer.write("# flush-ms, coalescing bursts into one write; sync-writes=true writes on\n");
+            writer.write("# every change instead (slower, nothing is lost on a crash)\n");
+            writer.write("ejectcloud.users.flush-ms=1000\n");
+            writer.write("ejectcloud.users.sync-writes=false\n");
+            writer.write("# Format of user metadata: xml (user.xml, rewritten on every save) or\n");
+            writer.write("# journal (user.journal, appends only the changes; better for thousands of\n");
+            writer.write("# shares). Switching converts each user on the next start\n");
+            writer.write("ejectcloud.users.store=xml\n");
+            writer.write("# Where users, shares, the file catalog and usage counters are kept: files\n");
+            writer.write("# (per-user files in Data/<user>, format above) or mvstore (one embedded\n");
+            writer.write("# database file Data/metadata.mv.db). Switching moves the data on the next start\n");
+            writer.write("ejectcloud.metadata.store=files\n");
+            writer.write("\n");
             writer.write("# HTTP redirect port (redirects to HTTPS)\n");
             writer.write("ejectcloud.http.redirect-port=7443\n");
             writer.write("\n");
@@ -106,14 +156,17 @@ public class EjectCloudApplication {
     @Component
     public static class StartupInitializer {
         private final UserService userService;
+        private final FileCatalogService fileCatalogService;
         
-        public StartupInitializer(UserService userService) {
+        public StartupInitializer(UserService userService, FileCatalogService fileCatalogService) {
             this.userService = userService;
+            this.fileCatalogService = fileCatalogService;
         }
         
         @EventListener(ApplicationReadyEvent.class)
         public void onApplicationReady() {
             userService.initializeDefaultAdmin();
+            fileCatalogService.reconcileAll();
         }
     }
     
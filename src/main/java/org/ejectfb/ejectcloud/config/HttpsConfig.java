@@ -2,6 +2,7 @@ package org.ejectfb.ejectcloud.config;
 
 import org.apache.catalina.Context;
 import org.apache.catalina.connector.Connector;
+import org.apache.coyote.http11.Http11NioProtocol;
 import org.apache.tomcat.util.descriptor.web.SecurityCollection;
 import org.apache.tomcat.util.descriptor.web.SecurityConstraint;
 import org.springframework.beans.factory.annotation.Value;
@@ -18,6 +19,9 @@ public class HttpsConfig {
     
     @Value("${server.port:8443}")
     private int httpsPort;
+    
+    @Value("${ejectcloud.download.sendfile:true}")
+    private boolean useSendfile;
 
     @Bean
     public ServletWebServerFactory servletContainer() {
@@ -32,6 +36,12 @@ public class HttpsConfig {
                 context.addConstraint(securityConstraint);
             }
         };
+        tomcat.addConnectorCustomizers(connector -> {
+            // sendfile работает только на соединениях без TLS (например, за обратным прокси)
+            if (connector.getProtocolHandler() instanceof Http11NioProtocol protocol) {
+                protocol.setUseSendfile(useSendfile);
+            }
+        });
         tomcat.addAdditionalTomcatConnectors(redirectConnector());
         return tomcat;
     }
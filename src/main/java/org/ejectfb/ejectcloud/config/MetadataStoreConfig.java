@@ -0,0 +1,134 @@
+package org.ejectfb.ejectcloud.config;
+
+import org.ejectfb.ejectcloud.model.FileData;
+import org.ejectfb.ejectcloud.model.UsageData;
+import org.ejectfb.ejectcloud.service.CatalogStore;
+import org.ejectfb.ejectcloud.service.JournalUserMetadataStore;
+import org.ejectfb.ejectcloud.service.MetadataDatabase;
+import org.ejectfb.ejectcloud.service.MvStoreCatalogStore;
+import org.ejectfb.ejectcloud.service.MvStoreUsageStore;
+import org.ejectfb.ejectcloud.service.MvStoreUserMetadataStore;
+import org.ejectfb.ejectcloud.service.UsageStore;
+import org.ejectfb.ejectcloud.service.UserMetadataStore;
+import org.ejectfb.ejectcloud.service.XmlCatalogStore;
+import org.ejectfb.ejectcloud.service.XmlPersistenceService;
+import org.ejectfb.ejectcloud.service.XmlUsageStore;
+import org.ejectfb.ejectcloud.service.XmlUserMetadataStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Хранилища метаданных. ejectcloud.metadata.store=files - файлы в
+ * Data/&lt;user&gt; (формат пользователей задает ejectcloud.users.store),
+ * mvstore - один файл Data/metadata.mv.db. Переход на mvstore импортирует
+ * файлы, обратный переход выгружает базу в файлы и переименовывает ее в
+ * metadata.mv.db.migrated.
+ */
+@Configuration
+public class MetadataStoreConfig {
+    private static final Logger log = LoggerFactory.getLogger(MetadataStoreConfig.class);
+
+    @Value("${ejectcloud.data-dir:./Data}")
+    private String baseDir;
+
+    @Value("${ejectcloud.metadata.store:files}")
+    private String metadataStore;
+
+    @Value("${ejectcloud.users.store:xml}")
+    private String usersStore;
+
+    @Bean(destroyMethod = "close")
+    @ConditionalOnProperty(name = "ejectcloud.metadata.store", havingValue = "mvstore")
+    public MetadataDatabase metadataDatabase() throws IOException {
+        Path dataDir = Paths.get(baseDir);
+        Files.createDirectories(dataDir);
+        return new MetadataDatabase(dataDir.resolve(MetadataDatabase.FILE));
+    }
+
+    @Bean
+    public CatalogStore catalogStore(XmlPersistenceService xmlPersistence, ObjectProvider<MetadataDatabase> database) {
+        return isDatabase()
+            ? new MvStoreCatalogStore(Paths.get(baseDir), database.getObject(), xmlPersistence)
+            : new XmlCatalogStore(Paths.get(baseDir), xmlPersistence);
+    }
+
+    @Bean
+    public UsageStore usageStore(XmlPersistenceService xmlPersistence, ObjectProvider<MetadataDatabase> database) {
+        return isDatabase()
+            ? new MvStoreUsageStore(Paths.get(baseDir), database.getObject(), xmlPersistence)
+            : new XmlUsageStore(Paths.get(baseDir), xmlPersistence);
+    }
+
+    @Bean
+    public UserMetadataStore userMetadataStore(XmlPersistenceService xmlPersistence, ObjectProvider<MetadataDatabase> database,
+                                               CatalogStore catalogStore, UsageStore usageStore) throws IOException {
+        Path dataDir = Paths.get(baseDir);
+        if (isDatabase()) {
+            return new MvStoreUserMetadataStore(dataDir, database.getObject(), xmlPersistence);
+        }
+        UserMetadataStore store = switch (usersStore) {
+            case "xml" -> new XmlUserMetadataStore(dataDir, xmlPersistence);
+            case "journal" -> new JournalUserMetadataStore(dataDir, xmlPersistence);
+            default -> throw new IllegalStateException("Unknown ejectcloud.users.store: " + usersStore + " (xml, journal)");
+        };
+        Path databaseFile = dataDir.resolve(MetadataDatabase.FILE);
+        if (Files.isRegularFile(databaseFile)) {
+            exportDatabase(databaseFile, xmlPersistence, store, catalogStore, usageStore);
+        }
+        return store;
+    }
+
+    private boolean isDatabase() {
+        return switch (metadataStore) {
+            case "files" -> false;
+            case "mvstore" -> true;
+            default -> throw new IllegalStateException("Unknown ejectcloud.metadata.store: " + metadataStore + " (files, mvstore)");
+        };
+    }
+
+    /** Возврат с mvstore на файлы: выгружает пользователей, каталоги и счетчики из базы. */
+    private void exportDatabase(Path databaseFile, XmlPersistenceService xmlPersistence, UserMetadataStore users,
+                                CatalogStore catalogs, UsageStore usage) throws IOException {
+        Path dataDir = databaseFile.getParent();
+        int count;
+        try (MetadataDatabase database = new MetadataDatabase(databaseFile)) {
+            UserMetadataStore fromUsers = new MvStoreUserMetadataStore(dataDir, database, xmlPersistence);
+            CatalogStore fromCatalogs = new MvStoreCatalogStore(dataDir, database, xmlPersistence);
+            UsageStore fromUsage = new MvStoreUsageStore(dataDir, database, xmlPersistence);
+            List<String> userIds = fromUsers.userIds();
+            for (String userId : userIds) {
+                users.save(userId, fromUsers.load(userId));
+                if (fromCatalogs.contains(userId)) {
+                    Map<String, FileData> entries = new TreeMap<>();
+                    for (FileData fileData : fromCatalogs.list(userId)) {
+                        entries.put(fileData.getId(), fileData);
+                    }
+                    catalogs.replace(userId, entries);
+                }
+                UsageData usageData = fromUsage.load(userId);
+                if (usageData != null) {
+                    usage.save(userId, usageData);
+                }
+            }
+            catalogs.flush();
+            count = userIds.size();
+        }
+        Files.move(databaseFile, databaseFile.resolveSibling(MetadataDatabase.FILE + ".migrated"),
+            StandardCopyOption.REPLACE_EXISTING);
+        log.info("[metadata] exported users={} from=mvstore to=files", count);
+    }
+}
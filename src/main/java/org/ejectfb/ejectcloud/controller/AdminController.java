@@ -76,9 +76,11 @@ public class AdminController {
         }
         
         long quota = quotaBytes != null ? quotaBytes : 1073741824L;
-        UserData userData = userService.createUser(email, email, displayName, telegramId, false);
-        userData.setQuotaBytes(quota);
-        userService.saveUserData(userData.getId(), userData);
+        UserData created = userService.createUser(email, email, displayName, telegramId, false);
+        UserData userData = userService.updateUserData(created.getId(), data -> {
+            data.setQuotaBytes(quota);
+            return true;
+        });
         
         return ResponseEntity.ok(userData);
     }
@@ -91,10 +93,11 @@ public class AdminController {
             return ResponseEntity.status(401).body(Map.of("error", "Unauthorized"));
         }
         
-        UserData userData = userService.loadUserData(userId);
+        UserData userData = userService.updateUserData(userId, data -> {
+            data.setQuotaBytes(quotaBytes);
+            return true;
+        });
         if (userData != null) {
-            userData.setQuotaBytes(quotaBytes);
-            userService.saveUserData(userId, userData);
             return ResponseEntity.ok(Map.of("success", true));
         }
         return ResponseEntity.badRequest().body(Map.of("error", "User not found"));
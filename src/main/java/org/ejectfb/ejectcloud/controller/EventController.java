@@ -0,0 +1,67 @@
+package org.ejectfb.ejectcloud.controller;
+
+import org.ejectfb.ejectcloud.model.UserData;
+import org.ejectfb.ejectcloud.service.ArchiveService;
+import org.ejectfb.ejectcloud.service.JwtService;
+import org.ejectfb.ejectcloud.service.ProgressEventService;
+import org.ejectfb.ejectcloud.service.UserService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+
+/**
+ * Поток событий прогресса (archive, upload) для вкладки: одно соединение
+ * вместо опроса /api/files/archive/status.
+ */
+@RestController
+@RequestMapping("/api/files")
+public class EventController {
+    private static final Logger log = LoggerFactory.getLogger(EventController.class);
+
+    private final UserService userService;
+    private final JwtService jwtService;
+    private final ProgressEventService progressEvents;
+    private final ArchiveService archiveService;
+
+    public EventController(UserService userService, JwtService jwtService,
+                           ProgressEventService progressEvents, ArchiveService archiveService) {
+        this.userService = userService;
+        this.jwtService = jwtService;
+        this.progressEvents = progressEvents;
+        this.archiveService = archiveService;
+    }
+
+    /** Сразу после подключения приходит состояние всех архивов пользователя. */
+    @GetMapping(value = "/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> events(@RequestParam String token) {
+        String telegramId = jwtService.validateAccessToken(token);
+        UserData user = telegramId == null ? null : userService.findUserByTelegramId(telegramId);
+        if (user == null) {
+            // EventSource не переподключается после ошибки: клиент откроет поток заново со свежим токеном
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).build();
+        }
+        SseEmitter emitter = progressEvents.subscribe(user.getId());
+        archiveService.publishJobs(user.getId());
+        // X-Accel-Buffering: nginx перед приложением не должен копить события
+        return ResponseEntity.ok()
+            .cacheControl(CacheControl.noStore())
+            .header("X-Accel-Buffering", "no")
+            .body(emitter);
+    }
+
+    /**
+     * Закрытая вкладка обнаруживается только при записи очередного события;
+     * это штатный обрыв, а не ошибка сервера.
+     */
+    @ExceptionHandler(IOException.class)
+    public void clientGone(IOException e) {
+        log.debug("[events] client disconnected msg={}", e.getMessage());
+    }
+}
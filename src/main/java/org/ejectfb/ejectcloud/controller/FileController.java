@@ -1,18 +1,25 @@
 package org.ejectfb.ejectcloud.controller;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.ejectfb.ejectcloud.model.FileData;
+import org.ejectfb.ejectcloud.model.FolderPage;
+import org.ejectfb.ejectcloud.model.UploadSession;
 import org.ejectfb.ejectcloud.model.UserData;
 import org.ejectfb.ejectcloud.service.FileStorageService;
 import org.ejectfb.ejectcloud.service.ArchiveService;
+import org.ejectfb.ejectcloud.service.FileTransferService;
 import org.ejectfb.ejectcloud.service.JwtService;
+import org.ejectfb.ejectcloud.service.UploadSessionService;
+import jakarta.servlet.http.HttpServletRequest;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.core.io.InputStreamResource;
 import org.springframework.core.io.FileSystemResource;
 import org.springframework.core.io.Resource;
 import org.springframework.http.*;
 import org.springframework.http.converter.ResourceRegionHttpMessageConverter;
 import org.springframework.http.MediaTypeFactory;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.multipart.MultipartFile;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,7 +32,8 @@ import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.nio.file.Path;
 import java.nio.file.Files;
-import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
 import java.nio.charset.Charset;
 import java.util.List;
 import java.util.stream.Collectors;
@@ -37,14 +45,24 @@ public class FileController {
     private final FileStorageService storageService;
     private final JwtService jwtService;
     private final ArchiveService archiveService;
+    private final FileTransferService fileTransfer;
+    private final UploadSessionService uploadSessions;
+    private final ObjectMapper objectMapper;
+    
+    private static final int MAX_LIST_PAGE = 1000;
     
     @Value("${ejectcloud.upload.timeout:10800000}")
     private long uploadTimeout;
 
-    public FileController(FileStorageService storageService, JwtService jwtService, ArchiveService archiveService) {
+    public FileController(FileStorageService storageService, JwtService jwtService, ArchiveService archiveService,
+                          FileTransferService fileTransfer, UploadSessionService uploadSessions,
+                          ObjectMapper objectMapper) {
         this.storageService = storageService;
         this.jwtService = jwtService;
         this.archiveService = archiveService;
+        this.fileTransfer = fileTransfer;
+        this.uploadSessions = uploadSessions;
+        this.objectMapper = objectMapper;
     }
 
     private String requireUserId(String token) {
@@ -63,25 +81,7 @@ public class FileController {
     }
 
     private Path safeResolveUserFile(String userId, String fileId) {
-        if (fileId == null) {
-            throw new IllegalStateException("fileId is required");
-        }
-
-        if (fileId.contains("..") || fileId.contains("\\") || fileId.startsWith("/") || fileId.startsWith("\\")) {
-            throw new IllegalStateException("Invalid fileId");
-        }
-
-        Path dataDir = storageService.getDataDir(userId).toAbsolutePath().normalize();
-        Path p;
-        try {
-            p = dataDir.resolve(fileId).normalize();
-        } catch (InvalidPathException e) {
-            throw new IllegalStateException("Invalid fileId");
-        }
-        if (!p.startsWith(dataDir)) {
-            throw new IllegalStateException("Invalid fileId");
-        }
-        return p;
+        return storageService.resolveUserFile(userId, fileId);
     }
 
     @PostMapping("/upload")
@@ -92,31 +92,148 @@ public class FileController {
         try {
             String originalName = file.getOriginalFilename();
             FileData fileData = storageService.uploadFile(userId, file, path);
-            
-            if (!fileData.getFilename().equals(originalName)) {
-                return ResponseEntity.ok(java.util.Map.of(
-                    "file", fileData,
-                    "renamed", true,
-                    "originalName", originalName,
-                    "newName", fileData.getFilename()
-                ));
-            }
-            
-            return ResponseEntity.ok(fileData);
+            return uploadResult(originalName, fileData);
         } catch (IllegalStateException e) {
-            if (e.getMessage().contains("Недостаточно места")) {
-                return ResponseEntity.status(HttpStatus.INSUFFICIENT_STORAGE)
-                    .header("Content-Type", "text/plain; charset=UTF-8")
-                    .body(e.getMessage());
-            }
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
-                .header("Content-Type", "text/plain; charset=UTF-8")
-                .body(e.getMessage());
+            return uploadError(e);
         } catch (IOException e) {
             return ResponseEntity.status(500).body("Ошибка сохранения файла");
         }
     }
     
+    /**
+     * Загрузка без multipart: тело запроса и есть содержимое файла
+     * (application/octet-stream), имя и папка передаются параметрами.
+     * Tomcat не буферизует тело во временный файл, данные пишутся сразу
+     * в папку пользователя. Необязательный sha256 позволяет в режиме
+     * дедупликации не писать на диск уже известное содержимое.
+     */
+    @PostMapping("/upload/stream")
+    public ResponseEntity<?> uploadStream(@RequestParam String token,
+                                          @RequestParam String filename,
+                                          @RequestParam(required = false) String path,
+                                          @RequestParam(required = false) String sha256,
+                                          HttpServletRequest request) {
+        String userId = requireUserId(token);
+        try (InputStream in = request.getInputStream()) {
+            FileData fileData = storageService.uploadStream(userId, in, filename, path,
+                request.getContentLengthLong(), sha256);
+            return uploadResult(filename, fileData);
+        } catch (IllegalStateException e) {
+            return uploadError(e);
+        } catch (IOException e) {
+            return ResponseEntity.status(500).body("Ошибка сохранения файла");
+        }
+    }
+    
+    /**
+     * Возобновляемая загрузка: создает сессию и резервирует место под файл.
+     * Дальше клиент шлет части PUT .../{id}?offset=N (можно параллельно),
+     * при обрыве спрашивает GET .../{id} и досылает недостающее, затем
+     * завершает POST .../{id}/complete.
+     */
+    @PostMapping("/upload/session")
+    public ResponseEntity<?> createUploadSession(@RequestParam String token,
+                                                 @RequestParam String filename,
+                                                 @RequestParam long size,
+                                                 @RequestParam(required = false) String path) {
+        String userId = requireUserId(token);
+        try {
+            UploadSession session = uploadSessions.create(userId, filename, path, size);
+            return ResponseEntity.ok(uploadSessionStatus(session));
+        } catch (IllegalStateException e) {
+            return uploadError(e);
+        } catch (IOException e) {
+            return ResponseEntity.status(500).body("Ошибка создания сессии загрузки");
+        }
+    }
+    
+    @PutMapping("/upload/session/{sessionId}")
+    public ResponseEntity<?> uploadChunk(@PathVariable String sessionId,
+                                         @RequestParam String token,
+                                         @RequestParam long offset,
+                                         HttpServletRequest request) {
+        String userId = requireUserId(token);
+        try (InputStream in = request.getInputStream()) {
+            UploadSession session = uploadSessions.writeChunk(userId, sessionId, offset, in);
+            return ResponseEntity.ok(uploadSessionStatus(session));
+        } catch (IllegalStateException e) {
+            return uploadError(e);
+        } catch (IOException e) {
+            return ResponseEntity.status(500).body("Ошибка сохранения части файла");
+        }
+    }
+    
+    @GetMapping("/upload/session/{sessionId}")
+    public ResponseEntity<?> getUploadSession(@PathVariable String sessionId, @RequestParam String token) {
+        String userId = requireUserId(token);
+        try {
+            return ResponseEntity.ok(uploadSessionStatus(uploadSessions.get(userId, sessionId)));
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(e.getMessage());
+        }
+    }
+    
+    @PostMapping("/upload/session/{sessionId}/complete")
+    public ResponseEntity<?> completeUploadSession(@PathVariable String sessionId, @RequestParam String token) {
+        String userId = requireUserId(token);
+        try {
+            String originalName = uploadSessions.get(userId, sessionId).getFilename();
+            FileData fileData = uploadSessions.complete(userId, sessionId);
+            return uploadResult(originalName, fileData);
+        } catch (IllegalStateException e) {
+            return uploadError(e);
+        } catch (IOException e) {
+            return ResponseEntity.status(500).body("Ошибка сохранения файла");
+        }
+    }
+    
+    @DeleteMapping("/upload/session/{sessionId}")
+    public ResponseEntity<?> cancelUploadSession(@PathVariable String sessionId, @RequestParam String token) {
+        String userId = requireUserId(token);
+        try {
+            uploadSessions.cancel(userId, sessionId);
+            return ResponseEntity.ok().build();
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(e.getMessage());
+        }
+    }
+    
+    private java.util.Map<String, Object> uploadSessionStatus(UploadSession session) {
+        java.util.Map<String, Object> status = new java.util.HashMap<>();
+        status.put("sessionId", session.getId());
+        status.put("filename", session.getFilename());
+        status.put("size", session.getSizeBytes());
+        status.put("chunkSize", session.getChunkSize());
+        status.put("expiresAt", session.getExpiresAt());
+        status.put("received", uploadSessions.receivedRanges(session));
+        status.put("receivedBytes", uploadSessions.receivedBytes(session));
+        return status;
+    }
+    
+    private ResponseEntity<?> uploadResult(String originalName, FileData fileData) {
+        if (!fileData.getFilename().equals(originalName)) {
+            return ResponseEntity.ok(java.util.Map.of(
+                "file", fileData,
+                "renamed", true,
+                "originalName", originalName,
+                "newName", fileData.getFilename()
+            ));
+        }
+        
+        return ResponseEntity.ok(fileData);
+    }
+    
+    private ResponseEntity<?> uploadError(IllegalStateException e) {
+        if (e.getMessage().contains("Недостаточно места")) {
+            return ResponseEntity.status(HttpStatus.INSUFFICIENT_STORAGE)
+                .header("Content-Type", "text/plain; charset=UTF-8")
+                .body(e.getMessage());
+        }
+        return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+            .header("Content-Type", "text/plain; charset=UTF-8")
+            .body(e.getMessage());
+    }
+    
     @PostMapping("/mkdir")
     public ResponseEntity<?> createDirectory(@RequestParam String token, @RequestParam String path) {
         String userId = requireUserId(token);
@@ -221,38 +338,108 @@ public class FileController {
                 }).collect(Collectors.toList());
     }
 
+    /**
+     * Постраничный список одной папки: только ее прямые потомки, сначала
+     * папки, затем файлы. sort - name, size или date, order - asc или desc;
+     * за следующей страницей передается nextCursor из ответа. JSON пишется
+     * сразу в поток ответа, стоимость зависит от размера папки, а не всего
+     * дерева пользователя.
+     */
+    @GetMapping("/v2/list")
+    public ResponseEntity<StreamingResponseBody> listFolder(@RequestParam String token,
+                                        @RequestParam(required = false) String folder,
+                                        @RequestParam(defaultValue = "100") int limit,
+                                        @RequestParam(defaultValue = "name") String sort,
+                                        @RequestParam(defaultValue = "asc") String order,
+                                        @RequestParam(required = false) String cursor) {
+        String userId = requireUserId(token);
+        if (!order.equals("asc") && !order.equals("desc")) {
+            return listError(HttpStatus.BAD_REQUEST, "Unknown order: " + order);
+        }
+        FolderPage page;
+        try {
+            page = storageService.listFolderPage(userId, folder, sort, order.equals("desc"), cursor,
+                Math.max(1, Math.min(limit, MAX_LIST_PAGE)));
+        } catch (IllegalStateException e) {
+            return listError(HttpStatus.BAD_REQUEST, e.getMessage());
+        } catch (NoSuchFileException | NotDirectoryException e) {
+            return ResponseEntity.notFound().build();
+        } catch (IOException e) {
+            return listError(HttpStatus.INTERNAL_SERVER_ERROR, "Ошибка чтения папки");
+        }
+
+        StreamingResponseBody body = outputStream -> {
+            try (JsonGenerator json = objectMapper.getFactory().createGenerator(outputStream)) {
+                json.writeStartObject();
+                json.writeStringField("folder", page.getFolder());
+                json.writeArrayFieldStart("items");
+                for (FileData f : page.getFolders()) {
+                    writeListItem(json, f, true);
+                }
+                for (FileData f : page.getFiles()) {
+                    writeListItem(json, f, false);
+                }
+                json.writeEndArray();
+                json.writeStringField("nextCursor", page.getNextCursor());
+                json.writeEndObject();
+            }
+        };
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(body);
+    }
+
+    /** Потоковый обработчик подхватывает только ResponseEntity&lt;StreamingResponseBody&gt;, поэтому и текст ошибки - поток. */
+    private static ResponseEntity<StreamingResponseBody> listError(HttpStatus status, String message) {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        return ResponseEntity.status(status)
+            .contentType(new MediaType(MediaType.TEXT_PLAIN, StandardCharsets.UTF_8))
+            .body(outputStream -> outputStream.write(bytes));
+    }
+
+    private static void writeListItem(JsonGenerator json, FileData f, boolean folder) throws IOException {
+        json.writeStartObject();
+        json.writeStringField("id", f.getId());
+        json.writeStringField("filename", f.getFilename());
+        json.writeBooleanField("folder", folder);
+        json.writeNumberField("size", f.getSizeBytes());
+        json.writeStringField("uploadedAt", f.getUploadedAt());
+        json.writeBooleanField("shared", f.isShared());
+        if (f.isShared()) {
+            json.writeStringField("shareExpiresAt", f.getShareExpiresAt());
+        }
+        json.writeEndObject();
+    }
+
     @GetMapping("/download")
-    public ResponseEntity<?> download(@RequestParam String fileId, @RequestParam String token) {
+    public ResponseEntity<?> download(@RequestParam String fileId, @RequestParam String token,
+                                      @RequestHeader HttpHeaders headers, HttpServletRequest request,
+                                      WebRequest webRequest) {
         try {
             String userId = requireUserId(token);
             
-            FileData fileData = storageService.listFiles(userId)
-                    .stream()
-                    .filter(f -> f.getId().equals(fileId))
-                    .findFirst()
-                    .orElse(null);
-            
+            FileData fileData = storageService.getFileInfo(userId, fileId);
             if (fileData == null) {
                 return ResponseEntity.notFound().build();
             }
-            
-            Path filePath = safeResolveUserFile(userId, fileId);
-            if (!java.nio.file.Files.exists(filePath)) {
-                return ResponseEntity.notFound().build();
+
+            String eTag = storageService.getETag(fileData);
+            long lastModified = storageService.getLastModified(fileData);
+            // 304 до открытия файла
+            if (webRequest.checkNotModified(eTag, lastModified)) {
+                return null;
             }
             
-            InputStreamResource resource = new InputStreamResource(new FileInputStream(filePath.toFile()));
+            Path filePath = safeResolveUserFile(userId, fileId);
             
             // Правильное кодирование имени файла для UTF-8
             String encodedFilename = java.net.URLEncoder.encode(fileData.getFilename(), "UTF-8")
                     .replaceAll("\\+", "%20");
             
-            return ResponseEntity.ok()
-                    .header(HttpHeaders.CONTENT_DISPOSITION, 
-                           "attachment; filename*=UTF-8''" + encodedFilename)
-                    .contentLength(fileData.getSizeBytes())
-                    .contentType(MediaType.APPLICATION_OCTET_STREAM)
-                    .body(resource);
+            HttpHeaders responseHeaders = new HttpHeaders();
+            responseHeaders.set(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename*=UTF-8''" + encodedFilename);
+            responseHeaders.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+            responseHeaders.setETag(eTag);
+            responseHeaders.setLastModified(lastModified);
+            return fileTransfer.serve(request, headers, filePath, fileData, responseHeaders);
         } catch (Exception e) {
             return ResponseEntity.status(HttpStatus.BAD_REQUEST)
                     .body("Ошибка скачивания файла: " + e.getMessage());
@@ -263,21 +450,12 @@ public class FileController {
     public ResponseEntity<?> fileInfo(@RequestParam String fileId, @RequestParam String token) {
         try {
             String userId = requireUserId(token);
-            FileData fileData = storageService.listFiles(userId)
-                .stream()
-                .filter(f -> f.getId().equals(fileId))
-                .findFirst()
-                .orElse(null);
-
+            FileData fileData = storageService.getFileInfo(userId, fileId);
             if (fileData == null) {
                 return ResponseEntity.notFound().build();
             }
 
             Path filePath = safeResolveUserFile(userId, fileId);
-            if (!Files.exists(filePath)) {
-                return ResponseEntity.notFound().build();
-            }
-
             String contentType = Files.probeContentType(filePath);
             if (contentType == null) {
                 contentType = MediaTypeFactory.getMediaType(filePath.getFileName().toString())
@@ -300,16 +478,25 @@ public class FileController {
     }
 
     @GetMapping("/view")
-    public ResponseEntity<?> viewInline(@RequestParam String fileId, @RequestParam String token, @RequestHeader HttpHeaders headers) {
+    public ResponseEntity<?> viewInline(@RequestParam String fileId, @RequestParam String token,
+                                        @RequestHeader HttpHeaders headers, HttpServletRequest request,
+                                        WebRequest webRequest) {
         try {
             String userId = requireUserId(token);
-            Path filePath = safeResolveUserFile(userId, fileId);
-            if (!Files.exists(filePath) || !Files.isRegularFile(filePath)) {
+            FileData fileData = storageService.getFileInfo(userId, fileId);
+            if (fileData == null) {
                 return ResponseEntity.notFound().build();
             }
 
+            String eTag = storageService.getETag(fileData);
+            long lastModified = storageService.getLastModified(fileData);
+            // 304 до открытия файла
+            if (webRequest.checkNotModified(eTag, lastModified)) {
+                return null;
+            }
+
+            Path filePath = safeResolveUserFile(userId, fileId);
             Resource resource = new FileSystemResource(filePath);
-            long len = Files.size(filePath);
             MediaType mt = MediaTypeFactory.getMediaType(resource).orElse(MediaType.APPLICATION_OCTET_STREAM);
 
             // Avoid executing HTML/SVG/etc in preview: if looks like HTML/SVG, force octet-stream.
@@ -321,30 +508,14 @@ public class FileController {
             String filename = filePath.getFileName().toString();
             String encodedFilename = URLEncoder.encode(filename, StandardCharsets.UTF_8).replaceAll("\\+", "%20");
 
-            // Range support (important for video)
-            List<HttpRange> ranges = headers.getRange();
-            if (ranges != null && !ranges.isEmpty()) {
-                HttpRange range = ranges.get(0);
-                long start = range.getRangeStart(len);
-                long end = range.getRangeEnd(len);
-                long rangeLen = Math.min(1 + end - start, len);
-                org.springframework.core.io.support.ResourceRegion region = new org.springframework.core.io.support.ResourceRegion(resource, start, rangeLen);
-
-                return ResponseEntity.status(HttpStatus.PARTIAL_CONTENT)
-                    .header(HttpHeaders.CONTENT_DISPOSITION, "inline; filename*=UTF-8''" + encodedFilename)
-                    .header("Accept-Ranges", "bytes")
-                    .header("X-Content-Type-Options", "nosniff")
-                    .contentType(mt)
-                    .body(region);
-            }
-
-            return ResponseEntity.ok()
-                .header(HttpHeaders.CONTENT_DISPOSITION, "inline; filename*=UTF-8''" + encodedFilename)
-                .header("Accept-Ranges", "bytes")
-                .header("X-Content-Type-Options", "nosniff")
-                .contentType(mt)
-                .contentLength(len)
-                .body(resource);
+            HttpHeaders responseHeaders = new HttpHeaders();
+            responseHeaders.set(HttpHeaders.CONTENT_DISPOSITION, "inline; filename*=UTF-8''" + encodedFilename);
+            responseHeaders.set("X-Content-Type-Options", "nosniff");
+            responseHeaders.setContentType(mt);
+            responseHeaders.setETag(eTag);
+            responseHeaders.setLastModified(lastModified);
+            // Range/If-Range и multipart/byteranges (важно для видео)
+            return fileTransfer.serve(request, headers, filePath, fileData, responseHeaders);
         } catch (Exception e) {
             log.warn("[view] inline error fileId='{}' msg={}", fileId, e.getMessage());
             return ResponseEntity.status(HttpStatus.BAD_REQUEST)
@@ -354,15 +525,24 @@ public class FileController {
     }
 
     @GetMapping("/text")
-    public ResponseEntity<?> viewText(@RequestParam String fileId, @RequestParam String token) {
+    public ResponseEntity<?> viewText(@RequestParam String fileId, @RequestParam String token, WebRequest webRequest) {
         try {
             String userId = requireUserId(token);
-            Path filePath = safeResolveUserFile(userId, fileId);
-            if (!Files.exists(filePath) || !Files.isRegularFile(filePath)) {
+            FileData fileData = storageService.getFileInfo(userId, fileId);
+            if (fileData == null) {
                 return ResponseEntity.notFound().build();
             }
 
-            long len = Files.size(filePath);
+            // текст перекодируется, поэтому валидатор слабый
+            String eTag = "W/" + storageService.getETag(fileData);
+            long lastModified = storageService.getLastModified(fileData);
+            // 304 до открытия файла
+            if (webRequest.checkNotModified(eTag, lastModified)) {
+                return null;
+            }
+
+            Path filePath = safeResolveUserFile(userId, fileId);
+            long len = fileData.getSizeBytes();
             long max = 2L * 1024L * 1024L; // 2MB
             if (len > max) {
                 return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE)
@@ -383,6 +563,9 @@ public class FileController {
 
             return ResponseEntity.ok()
                 .header("X-Content-Type-Options", "nosniff")
+                .eTag(eTag)
+                .lastModified(lastModified)
+                .cacheControl(CacheControl.noCache())
                 .contentType(MediaType.parseMediaType("text/plain; charset=UTF-8"))
                 .body(text);
         } catch (Exception e) {
@@ -548,6 +731,32 @@ public class FileController {
         }
     }
 
+    /**
+     * Групповые операции над выбранным: тело - JSON-массив вида
+     * {"op": "delete|move|rename", "path": "...", "folder": true,
+     * "target": "папка для move", "name": "имя для rename"}.
+     * Ответ 200 с результатом по каждой операции, даже если часть не удалась.
+     */
+    @PostMapping("/batch")
+    public ResponseEntity<?> batch(@RequestParam String token,
+                                   @RequestBody List<java.util.Map<String, Object>> operations) {
+        try {
+            String userId = requireUserId(token);
+            List<java.util.Map<String, Object>> results = storageService.applyBatch(userId, operations);
+            long failed = results.stream().filter(r -> !Boolean.TRUE.equals(r.get("ok"))).count();
+            log.info("[batch] done userId={} operations={} failed={}", userId, results.size(), failed);
+            return ResponseEntity.ok(java.util.Map.of(
+                "results", results,
+                "succeeded", results.size() - failed,
+                "failed", failed
+            ));
+        } catch (Exception e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                    .header("Content-Type", "application/json; charset=UTF-8")
+                    .body(java.util.Map.of("error", e.getMessage()));
+        }
+    }
+
     @PostMapping("/archive")
     public ResponseEntity<?> startArchive(@RequestParam String token,
                                          @RequestParam(required = false, defaultValue = "") String path,
@@ -557,6 +766,14 @@ public class FileController {
             String safePath = URLEncoder.encode(path == null ? "" : path, StandardCharsets.UTF_8);
             String safeName = URLEncoder.encode(fileName == null ? "" : fileName, StandardCharsets.UTF_8);
             log.info("[archive] request start userId={} pathEnc='{}' fileNameEnc='{}'", userId, safePath, safeName);
+            if (archiveService.isStreaming()) {
+                // задачи нет: клиент сразу скачивает /archive/download?path=...
+                archiveService.resolveStreamSource(userId, path);
+                if (archiveService.streamAdmission(userId) != ArchiveService.StreamAdmission.ACCEPTED) {
+                    throw new IllegalStateException("Слишком много архивов собирается, попробуйте позже");
+                }
+                return ResponseEntity.ok(java.util.Map.of("streaming", true));
+            }
             String jobId = archiveService.startJob(userId, path, fileName);
             return ResponseEntity.ok(java.util.Map.of("jobId", jobId));
         } catch (Exception e) {
@@ -581,10 +798,20 @@ public class FileController {
         }
     }
 
+    /**
+     * С jobId отдает готовый архив задачи, без него - собирает архив папки path
+     * на лету прямо в ответ (без временного файла и лимита размера).
+     */
     @GetMapping(value = "/archive/download", produces = "application/zip")
-    public ResponseEntity<StreamingResponseBody> downloadArchive(@RequestParam String token, @RequestParam String jobId) {
+    public ResponseEntity<StreamingResponseBody> downloadArchive(@RequestParam String token,
+                                                                 @RequestParam(required = false) String jobId,
+                                                                 @RequestParam(required = false, defaultValue = "") String path,
+                                                                 @RequestParam(required = false) String fileName) {
         try {
             String userId = requireUserId(token);
+            if (jobId == null || jobId.isBlank()) {
+                return streamArchive(userId, path, fileName);
+            }
             Path zipPath = archiveService.getZipPathForDownload(userId, jobId);
             if (!java.nio.file.Files.exists(zipPath)) {
                 return ResponseEntity.notFound().build();
@@ -623,6 +850,44 @@ public class FileController {
         }
     }
 
+    private ResponseEntity<StreamingResponseBody> streamArchive(String userId, String path, String fileName) throws IOException {
+        Path source = archiveService.resolveStreamSource(userId, path);
+        String name = fileName;
+        if (name == null || name.isBlank()) {
+            name = (path == null || path.isBlank() ? userId : source.getFileName().toString()) + ".zip";
+        }
+        String encodedFilename = URLEncoder.encode(name, StandardCharsets.UTF_8).replaceAll("\\+", "%20");
+
+        // поток занимает слот сборки архивов наравне с задачами очереди
+        ArchiveService.StreamAdmission admission = archiveService.tryStartStream(userId);
+        if (admission != ArchiveService.StreamAdmission.ACCEPTED) {
+            log.info("[archive] stream rejected userId={} reason={}", userId, admission);
+            return ResponseEntity.status(admission == ArchiveService.StreamAdmission.USER_BUSY
+                    ? HttpStatus.TOO_MANY_REQUESTS : HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, "10")
+                .build();
+        }
+        log.info("[archive] stream start userId={} pathEnc='{}'", userId, URLEncoder.encode(path, StandardCharsets.UTF_8));
+
+        StreamingResponseBody body = outputStream -> {
+            try {
+                archiveService.streamArchive(userId, source, new BufferedOutputStream(outputStream, 64 * 1024));
+            } catch (Exception ex) {
+                log.warn("[archive] stream aborted userId={} source={} msg={}", userId, source, ex.getMessage());
+                throw ex;
+            } finally {
+                archiveService.finishStream(userId);
+            }
+        };
+
+        // длина заранее неизвестна - chunked; Cache-Control: no-store, архив каждый раз собирается заново
+        return ResponseEntity.ok()
+            .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename*=UTF-8''" + encodedFilename)
+            .contentType(MediaType.parseMediaType("application/zip"))
+            .cacheControl(CacheControl.noStore())
+            .body(body);
+    }
+
     @DeleteMapping("/archive")
     public ResponseEntity<?> deleteArchive(@RequestParam String token, @RequestParam String jobId) {
         try {
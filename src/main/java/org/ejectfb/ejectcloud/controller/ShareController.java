@@ -2,9 +2,11 @@ package org.ejectfb.ejectcloud.controller;
 
 import org.ejectfb.ejectcloud.model.FileData;
 import org.ejectfb.ejectcloud.service.FileStorageService;
-import org.springframework.core.io.InputStreamResource;
+import org.ejectfb.ejectcloud.service.FileTransferService;
+import jakarta.servlet.http.HttpServletRequest;
 import org.springframework.http.*;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 
 import java.io.*;
 import java.net.URLEncoder;
@@ -14,37 +16,42 @@ import java.nio.file.Path;
 @RequestMapping("/share")
 public class ShareController {
     private final FileStorageService storageService;
+    private final FileTransferService fileTransfer;
 
-    public ShareController(FileStorageService storageService) {
+    public ShareController(FileStorageService storageService, FileTransferService fileTransfer) {
         this.storageService = storageService;
+        this.fileTransfer = fileTransfer;
     }
 
     @GetMapping("/{shareId}")
-    public ResponseEntity<?> downloadShared(@PathVariable String shareId) {
+    public ResponseEntity<?> downloadShared(@PathVariable String shareId,
+                                            @RequestHeader HttpHeaders headers, HttpServletRequest request,
+                                            WebRequest webRequest) {
         try {
             FileData fileData = storageService.getFileByShare(shareId);
             if (fileData == null) {
                 return ResponseEntity.notFound().build();
             }
 
-            Path filePath = storageService.getFilePath(fileData.getTelegramId(), fileData.getId());
-
-            if (!java.nio.file.Files.exists(filePath)) {
-                return ResponseEntity.notFound().build();
+            String eTag = storageService.getETag(fileData);
+            long lastModified = storageService.getLastModified(fileData);
+            // 304 до открытия файла
+            if (webRequest.checkNotModified(eTag, lastModified)) {
+                return null;
             }
 
-            InputStreamResource resource = new InputStreamResource(new FileInputStream(filePath.toFile()));
-            
+            Path filePath = storageService.getFilePath(fileData.getTelegramId(), fileData.getId());
+
             // Правильное кодирование имени файла для UTF-8
             String encodedFilename = java.net.URLEncoder.encode(fileData.getFilename(), "UTF-8")
                     .replaceAll("\\+", "%20");
             
-            return ResponseEntity.ok()
-                    .header(HttpHeaders.CONTENT_DISPOSITION, 
-                           "attachment; filename*=UTF-8''" + encodedFilename)
-                    .contentLength(fileData.getSizeBytes())
-                    .contentType(MediaType.APPLICATION_OCTET_STREAM)
-                    .body(resource);
+            HttpHeaders responseHeaders = new HttpHeaders();
+            responseHeaders.set(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename*=UTF-8''" + encodedFilename);
+            responseHeaders.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+            responseHeaders.setETag(eTag);
+            responseHeaders.setLastModified(lastModified);
+            return fileTransfer.serve(request, headers, filePath, fileData, responseHeaders);
         } catch (Exception e) {
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
                     .body("Ошибка скачивания файла: " + e.getMessage());
@@ -0,0 +1,64 @@
+package org.ejectfb.ejectcloud.model;
+
+import jakarta.xml.bind.annotation.*;
+
+@XmlRootElement(name = "archiveJob")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class ArchiveJobRecord {
+    
+    @XmlElement
+    private String jobId;
+    
+    @XmlElement
+    private String userId;
+    
+    @XmlElement
+    private String folderPath;
+    
+    @XmlElement
+    private String fileName;
+    
+    @XmlElement
+    private String state;
+    
+    @XmlElement
+    private String zipPath;
+    
+    @XmlElement
+    private long zipBytes;
+    
+    @XmlElement
+    private String createdAt;
+    
+    @XmlElement
+    private String completedAt;
+    
+    public ArchiveJobRecord() {}
+    
+    public String getJobId() { return jobId; }
+    public void setJobId(String jobId) { this.jobId = jobId; }
+    
+    public String getUserId() { return userId; }
+    public void setUserId(String userId) { this.userId = userId; }
+    
+    public String getFolderPath() { return folderPath; }
+    public void setFolderPath(String folderPath) { this.folderPath = folderPath; }
+    
+    public String getFileName() { return fileName; }
+    public void setFileName(String fileName) { this.fileName = fileName; }
+    
+    public String getState() { return state; }
+    public void setState(String state) { this.state = state; }
+    
+    public String getZipPath() { return zipPath; }
+    public void setZipPath(String zipPath) { this.zipPath = zipPath; }
+    
+    public long getZipBytes() { return zipBytes; }
+    public void setZipBytes(long zipBytes) { this.zipBytes = zipBytes; }
+    
+    public String getCreatedAt() { return createdAt; }
+    public void setCreatedAt(String createdAt) { this.createdAt = createdAt; }
+    
+    public String getCompletedAt() { return completedAt; }
+    public void setCompletedAt(String completedAt) { this.completedAt = completedAt; }
+}
\ No newline at end of file
@@ -0,0 +1,25 @@
+package org.ejectfb.ejectcloud.model;
+
+import jakarta.xml.bind.annotation.*;
+import java.util.ArrayList;
+import java.util.List;
+
+@XmlRootElement(name = "archiveJobs")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class ArchiveJournal {
+    
+    @XmlElement
+    private String updatedAt;
+    
+    @XmlElementWrapper(name = "jobs")
+    @XmlElement(name = "job")
+    private List<ArchiveJobRecord> jobs = new ArrayList<>();
+    
+    public ArchiveJournal() {}
+    
+    public String getUpdatedAt() { return updatedAt; }
+    public void setUpdatedAt(String updatedAt) { this.updatedAt = updatedAt; }
+    
+    public List<ArchiveJobRecord> getJobs() { return jobs; }
+    public void setJobs(List<ArchiveJobRecord> jobs) { this.jobs = jobs; }
+}
\ No newline at end of file
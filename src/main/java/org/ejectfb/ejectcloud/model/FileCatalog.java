@@ -0,0 +1,25 @@
+package org.ejectfb.ejectcloud.model;
+
+import jakarta.xml.bind.annotation.*;
+import java.util.ArrayList;
+import java.util.List;
+
+@XmlRootElement(name = "catalog")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class FileCatalog {
+    
+    @XmlElement
+    private String updatedAt;
+    
+    @XmlElementWrapper(name = "files")
+    @XmlElement(name = "file")
+    private List<FileData> files = new ArrayList<>();
+    
+    public FileCatalog() {}
+    
+    public String getUpdatedAt() { return updatedAt; }
+    public void setUpdatedAt(String updatedAt) { this.updatedAt = updatedAt; }
+    
+    public List<FileData> getFiles() { return files; }
+    public void setFiles(List<FileData> files) { this.files = files; }
+}
\ No newline at end of file
@@ -0,0 +1,30 @@
+package org.ejectfb.ejectcloud.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Страница содержимого одной папки: сначала вложенные папки, затем файлы,
+ * в выбранном порядке. nextCursor == null, если страница последняя.
+ */
+public class FolderPage {
+
+    private String folder;
+    private List<FileData> folders = new ArrayList<>();
+    private List<FileData> files = new ArrayList<>();
+    private String nextCursor;
+
+    public FolderPage() {}
+
+    public String getFolder() { return folder; }
+    public void setFolder(String folder) { this.folder = folder; }
+
+    public List<FileData> getFolders() { return folders; }
+    public void setFolders(List<FileData> folders) { this.folders = folders; }
+
+    public List<FileData> getFiles() { return files; }
+    public void setFiles(List<FileData> files) { this.files = files; }
+
+    public String getNextCursor() { return nextCursor; }
+    public void setNextCursor(String nextCursor) { this.nextCursor = nextCursor; }
+}
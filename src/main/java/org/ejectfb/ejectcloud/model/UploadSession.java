@@ -0,0 +1,69 @@
+package org.ejectfb.ejectcloud.model;
+
+import jakarta.xml.bind.annotation.*;
+import java.util.ArrayList;
+import java.util.List;
+
+@XmlRootElement(name = "uploadSession")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class UploadSession {
+    
+    @XmlElement
+    private String id;
+    
+    @XmlElement
+    private String userId;
+    
+    @XmlElement
+    private String filename;
+    
+    @XmlElement
+    private String path;
+    
+    @XmlElement
+    private long sizeBytes;
+    
+    @XmlElement
+    private long chunkSize;
+    
+    @XmlElement
+    private String createdAt;
+    
+    @XmlElement
+    private String expiresAt;
+    
+    @XmlElementWrapper(name = "receivedChunks")
+    @XmlElement(name = "chunk")
+    private List<Integer> receivedChunks = new ArrayList<>();
+    
+    public UploadSession() {}
+    
+    public String getId() { return id; }
+    public void setId(String id) { this.id = id; }
+    
+    public String getUserId() { return userId; }
+    public void setUserId(String userId) { this.userId = userId; }
+    
+    public String getFilename() { return filename; }
+    public void setFilename(String filename) { this.filename = filename; }
+    
+    public String getPath() { return path; }
+    public void setPath(String path) { this.path = path; }
+    
+    public long getSizeBytes() { return sizeBytes; }
+    public void setSizeBytes(long sizeBytes) { this.sizeBytes = sizeBytes; }
+    
+    public long getChunkSize() { return chunkSize; }
+    public void setChunkSize(long chunkSize) { this.chunkSize = chunkSize; }
+    
+    public String getCreatedAt() { return createdAt; }
+    public void setCreatedAt(String createdAt) { this.createdAt = createdAt; }
+    
+    public String getExpiresAt() { return expiresAt; }
+    public void setExpiresAt(String expiresAt) { this.expiresAt = expiresAt; }
+    
+    public List<Integer> getReceivedChunks() { return receivedChunks; }
+    public void setReceivedChunks(List<Integer> receivedChunks) { this.receivedChunks = receivedChunks; }
+    
+    public int getChunkCount() { return (int) ((sizeBytes + chunkSize - 1) / chunkSize); }
+}
\ No newline at end of file
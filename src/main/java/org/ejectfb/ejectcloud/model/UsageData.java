@@ -0,0 +1,36 @@
+package org.ejectfb.ejectcloud.model;
+
+import jakarta.xml.bind.annotation.*;
+
+@XmlRootElement(name = "usage")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class UsageData {
+    
+    @XmlElement
+    private long dataBytes;
+    
+    @XmlElement
+    private long trashBytes;
+    
+    @XmlElement
+    private long fileCount;
+    
+    @XmlElement
+    private String reconciledAt;
+    
+    public UsageData() {}
+    
+    public long getDataBytes() { return dataBytes; }
+    public void setDataBytes(long dataBytes) { this.dataBytes = dataBytes; }
+    
+    public long getTrashBytes() { return trashBytes; }
+    public void setTrashBytes(long trashBytes) { this.trashBytes = trashBytes; }
+    
+    public long getFileCount() { return fileCount; }
+    public void setFileCount(long fileCount) { this.fileCount = fileCount; }
+    
+    public String getReconciledAt() { return reconciledAt; }
+    public void setReconciledAt(String reconciledAt) { this.reconciledAt = reconciledAt; }
+    
+    public long getTotalBytes() { return dataBytes + trashBytes; }
+}
\ No newline at end of file
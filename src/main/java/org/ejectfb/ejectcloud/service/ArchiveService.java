@@ -1,24 +1,48 @@
 package org.ejectfb.ejectcloud.service;
 
+import io.github.bucket4j.Bandwidth;
+import io.github.bucket4j.Bucket;
+import io.github.bucket4j.Refill;
+import jakarta.annotation.PostConstruct;
+import org.ejectfb.ejectcloud.model.ArchiveJobRecord;
+import org.ejectfb.ejectcloud.model.ArchiveJournal;
+import org.ejectfb.ejectcloud.model.FileData;
+import org.ejectfb.ejectcloud.util.ParallelZipWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.time.Duration;
 import java.time.Instant;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
 
 @Service
 public class ArchiveService {
@@ -29,53 +53,533 @@ public class ArchiveService {
 
     private static final Logger log = LoggerFactory.getLogger(ArchiveService.class);
 
+    @Value("${ejectcloud.data-dir:./Data}")
+    private String baseDir;
+
+    @Value("${ejectcloud.archive.threads:0}")
+    private int configuredThreads;
+
+    @Value("${ejectcloud.archive.streaming:false}")
+    private boolean streaming;
+
+    @Value("${ejectcloud.archive.workers:2}")
+    private int workers;
+
+    @Value("${ejectcloud.archive.per-user-jobs:1}")
+    private int perUserJobs;
+
+    @Value("${ejectcloud.archive.max-queued:50}")
+    private int maxQueued;
+
+    @Value("${ejectcloud.archive.read-limit-mb:0}")
+    private long readLimitMb;
+
+    @Value("${ejectcloud.archive.cache-max-mb:10240}")
+    private long cacheMaxMb;
+
+    @Value("${ejectcloud.archive.cache-hours:24}")
+    private long cacheHours;
+
     private final FileStorageService storageService;
-    private final ExecutorService executor;
+    private final FileCatalogService fileCatalog;
+    private final XmlPersistenceService xmlPersistence;
+    private final ProgressEventService events;
+    private final Object journalLock = new Object();
+    private ExecutorService executor;
+    // очередь задач по порядку поступления и счетчики запущенных; все под synchronized (queue)
+    private final Deque<Job> queue = new ArrayDeque<>();
+    private final Map<String, Integer> runningByUser = new HashMap<>();
+    private int runningCount = 0;
+    // общий лимит чтения файлов для всех архивов: архивация не забирает весь диск
+    private Bucket readBucket;
+    // общий для всех задач пул сжатия: сколько бы архивов ни собиралось, ядер занято не больше
+    private ExecutorService compressPool;
+    private int compressThreads;
     private final ConcurrentHashMap<String, Job> jobs = new ConcurrentHashMap<>();
 
-    public ArchiveService(FileStorageService storageService) {
+    public ArchiveService(FileStorageService storageService, FileCatalogService fileCatalog,
+                          XmlPersistenceService xmlPersistence, ProgressEventService events) {
         this.storageService = storageService;
-        this.executor = Executors.newCachedThreadPool(r -> {
-            Thread t = new Thread(r, "archive-job");
+        this.fileCatalog = fileCatalog;
+        this.xmlPersistence = xmlPersistence;
+        this.events = events;
+    }
+
+    @PostConstruct
+    public void initPools() {
+        workers = Math.max(1, workers);
+        perUserJobs = Math.max(1, perUserJobs);
+        AtomicInteger jobCounter = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(workers, r -> {
+            Thread t = new Thread(r, "archive-job-" + jobCounter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        compressThreads = configuredThreads > 0 ? configuredThreads : Runtime.getRuntime().availableProcessors();
+        AtomicInteger counter = new AtomicInteger();
+        compressPool = Executors.newFixedThreadPool(compressThreads, r -> {
+            Thread t = new Thread(r, "archive-deflate-" + counter.incrementAndGet());
             t.setDaemon(true);
             return t;
         });
+        if (readLimitMb > 0) {
+            long bytesPerSec = readLimitMb * 1024L * 1024L;
+            // емкость не меньше двух блоков чтения, иначе блок не пройдет никогда
+            long capacity = Math.max(bytesPerSec, 2L * ParallelZipWriter.BLOCK_SIZE);
+            readBucket = Bucket.builder()
+                .addLimit(Bandwidth.classic(capacity, Refill.greedy(bytesPerSec, Duration.ofSeconds(1))))
+                .build();
+        }
+        log.info("[archive] workers={} perUserJobs={} maxQueued={} compressThreads={} readLimitMb={}",
+            workers, perUserJobs, maxQueued, compressThreads, readLimitMb);
+        restoreJobs();
+    }
+
+    /**
+     * Поднимает задачи из журнала _archives/jobs.xml: готовые архивы снова
+     * доступны для скачивания, а задачи, прерванные рестартом (в очереди
+     * или в работе), ставятся в очередь заново.
+     */
+    private void restoreJobs() {
+        Path journalFile = journalFile();
+        if (!Files.isRegularFile(journalFile)) {
+            return;
+        }
+        ArchiveJournal journal;
+        try {
+            journal = xmlPersistence.read(journalFile, ArchiveJournal.class);
+        } catch (Exception e) {
+            log.warn("[archive] journal load failed file={} msg={}", journalFile, e.getMessage());
+            return;
+        }
+        int restored = 0;
+        int requeued = 0;
+        for (ArchiveJobRecord record : journal.getJobs()) {
+            String folderPath = record.getFolderPath() == null ? "" : record.getFolderPath();
+            Job job = new Job(record.getJobId(), record.getUserId(), folderPath, record.getFileName(),
+                Instant.parse(record.getCreatedAt()).toEpochMilli());
+            if ("done".equals(record.getState())) {
+                Path zip = record.getZipPath() == null ? null : Paths.get(record.getZipPath());
+                if (zip == null || !Files.isRegularFile(zip)) {
+                    continue;
+                }
+                job.state = "done";
+                job.percent = 100;
+                job.message = "Готово";
+                job.zipPath = zip;
+                job.zipBytes = record.getZipBytes();
+                job.completedAtMs = Instant.parse(record.getCompletedAt()).toEpochMilli();
+                jobs.put(job.jobId, job);
+                restored++;
+            } else {
+                jobs.put(job.jobId, job);
+                synchronized (queue) {
+                    queue.addLast(job);
+                }
+                requeued++;
+            }
+        }
+        log.info("[archive] journal restored done={} requeued={}", restored, requeued);
+        saveJournal();
+        dispatch();
+    }
+
+    /**
+     * Записывает журнал: задачи в очереди, в работе и готовые архивы.
+     * Снимок собирается под той же блокировкой, что и запись, иначе более
+     * старый снимок из параллельного вызова мог бы лечь поверх нового.
+     */
+    private void saveJournal() {
+        synchronized (journalLock) {
+            ArchiveJournal journal = new ArchiveJournal();
+            for (Job job : jobs.values()) {
+                String state = job.state;
+                if (!"queued".equals(state) && !"running".equals(state) && !"done".equals(state)) {
+                    continue;
+                }
+                ArchiveJobRecord record = new ArchiveJobRecord();
+                record.setJobId(job.jobId);
+                record.setUserId(job.userId);
+                record.setFolderPath(job.folderPath);
+                record.setFileName(job.fileName);
+                record.setState(state);
+                record.setCreatedAt(Instant.ofEpochMilli(job.createdAtMs).toString());
+                if ("done".equals(state)) {
+                    record.setZipPath(job.zipPath == null ? null : job.zipPath.toString());
+                    record.setZipBytes(job.zipBytes);
+                    record.setCompletedAt(Instant.ofEpochMilli(job.completedAtMs).toString());
+                }
+                journal.getJobs().add(record);
+            }
+            journal.setUpdatedAt(Instant.now().toString());
+            try {
+                Files.createDirectories(journalFile().getParent());
+                xmlPersistence.write(journalFile(), journal);
+            } catch (Exception e) {
+                log.warn("[archive] journal save failed msg={}", e.getMessage());
+            }
+        }
+    }
+
+    private Path journalFile() {
+        return Paths.get(baseDir, "_archives", "jobs.xml");
+    }
+
+    /** Архивы папок отдаются потоком сразу, без фоновой задачи (см. streamArchive). */
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /** Результат попытки занять слот под потоковый архив. */
+    public enum StreamAdmission { ACCEPTED, USER_BUSY, SERVER_BUSY }
+
+    /**
+     * Потоковый архив занимает тот же слот, что и задача в работе: общий
+     * лимит workers и perUserJobs на пользователя. Слот освобождает
+     * finishStream, после чего очередь задач двигается дальше.
+     */
+    public StreamAdmission tryStartStream(String userId) {
+        synchronized (queue) {
+            StreamAdmission admission = streamAdmission(userId);
+            if (admission == StreamAdmission.ACCEPTED) {
+                runningCount++;
+                runningByUser.merge(userId, 1, Integer::sum);
+            }
+            return admission;
+        }
+    }
+
+    /** Проверка без захвата слота: есть ли сейчас место под поток. */
+    public StreamAdmission streamAdmission(String userId) {
+        synchronized (queue) {
+            if (runningByUser.getOrDefault(userId, 0) >= perUserJobs) {
+                return StreamAdmission.USER_BUSY;
+            }
+            if (runningCount >= workers) {
+                return StreamAdmission.SERVER_BUSY;
+            }
+            return StreamAdmission.ACCEPTED;
+        }
+    }
+
+    public void finishStream(String userId) {
+        synchronized (queue) {
+            runningCount--;
+            runningByUser.computeIfPresent(userId, (u, n) -> n > 1 ? n - 1 : null);
+        }
+        dispatch();
     }
 
     public String startJob(String userId, String folderPath, String fileName) {
-        cleanupOld();
         String jobId = UUID.randomUUID().toString();
         Job job = new Job(jobId, userId, folderPath == null ? "" : folderPath, fileName);
-        jobs.put(jobId, job);
-        log.info("[archive] job start jobId={} userId={} pathEnc='{}' fileNameEnc='{}'",
+        if (tryCompleteFromCache(job)) {
+            jobs.put(jobId, job);
+            saveJournal();
+            publish(job);
+            return jobId;
+        }
+        synchronized (queue) {
+            if (queue.size() >= maxQueued) {
+                throw new IllegalStateException("Слишком много архивов в очереди, попробуйте позже");
+            }
+            jobs.put(jobId, job);
+            queue.addLast(job);
+        }
+        publish(job);
+        log.info("[archive] job queued jobId={} userId={} pathEnc='{}' fileNameEnc='{}'",
             jobId,
             userId,
             safe(job.folderPath),
             safe(fileName));
-        executor.submit(() -> runJob(job));
+        saveJournal();
+        dispatch();
         return jobId;
     }
 
+    /**
+     * Запускает задачи из очереди по порядку, пока есть свободные воркеры.
+     * Задача пользователя, у которого уже идет perUserJobs архивов, ждет,
+     * пропуская вперед задачи других пользователей.
+     */
+    private void dispatch() {
+        synchronized (queue) {
+            boolean started = false;
+            Iterator<Job> it = queue.iterator();
+            while (runningCount < workers && it.hasNext()) {
+                Job job = it.next();
+                if (runningByUser.getOrDefault(job.userId, 0) >= perUserJobs) {
+                    continue;
+                }
+                it.remove();
+                runningCount++;
+                runningByUser.merge(job.userId, 1, Integer::sum);
+                job.state = "running";
+                started = true;
+                publish(job);
+                executor.execute(() -> {
+                    synchronized (job) {
+                        job.worker = Thread.currentThread();
+                    }
+                    try {
+                        runJob(job);
+                    } finally {
+                        synchronized (job) {
+                            job.worker = null;
+                            // прерывание от отмены не должно достаться следующей задаче воркера
+                            Thread.interrupted();
+                        }
+                        onJobFinished(job);
+                    }
+                });
+            }
+            if (started) {
+                // остальные задачи продвинулись в очереди
+                for (Job queued : queue) {
+                    publish(queued);
+                }
+            }
+        }
+    }
+
+    private void onJobFinished(Job job) {
+        synchronized (queue) {
+            runningCount--;
+            runningByUser.computeIfPresent(job.userId, (u, n) -> n > 1 ? n - 1 : null);
+        }
+        publish(job);
+        saveJournal();
+        dispatch();
+    }
+
+    /**
+     * Если папка не менялась с прошлой сборки (тот же отпечаток), задача сразу
+     * получает готовый архив из кеша - без очереди, чтения и сжатия.
+     */
+    private boolean tryCompleteFromCache(Job job) {
+        if (cacheMaxMb <= 0) {
+            return false;
+        }
+        try {
+            Path dataDir = storageService.getDataDir(job.userId).toAbsolutePath().normalize();
+            Path source = job.folderPath.isBlank() ? dataDir : dataDir.resolve(job.folderPath).normalize();
+            if (!source.startsWith(dataDir) || !Files.isDirectory(source)) {
+                return false;
+            }
+            FolderScan scan = scanFolder(job.userId, dataDir, source);
+            Path cached = cacheFile(job.userId, scan.fingerprint);
+            if (!Files.isRegularFile(cached)) {
+                return false;
+            }
+            // время изменения файла кеша - время последнего использования (для LRU)
+            Files.setLastModifiedTime(cached, FileTime.from(Instant.now()));
+            job.zipPath = cached;
+            job.zipBytes = Files.size(cached);
+            job.state = "done";
+            job.percent = 100;
+            job.message = "Готово";
+            job.completedAtMs = System.currentTimeMillis();
+            log.info("[archive] cache hit jobId={} userId={} out={} folderBytes={}", job.jobId, job.userId, cached, scan.totalBytes);
+            return true;
+        } catch (IOException | UncheckedIOException e) {
+            log.warn("[archive] cache check failed userId={} msg={}", job.userId, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Список файлов папки из каталога метаданных (FileCatalogService) - без
+     * обхода диска: общий размер и число файлов для прогресса и отпечаток
+     * (SHA-256 по именам записей, размерам и времени изменения файлов).
+     */
+    private FolderScan scanFolder(String userId, Path dataDir, Path source) {
+        String folderId = dataDir.relativize(source).toString().replace("\\", "/");
+        // имена записей начинаются с имени самой папки (кроме архива корня)
+        int baseLength = folderId.isEmpty() ? 0 : folderId.lastIndexOf('/') + 1;
+        List<FileData> files = fileCatalog.listFolder(userId, folderId);
+        MessageDigest digest = BlobStoreService.newDigest();
+        long total = 0;
+        for (FileData file : files) {
+            total += file.getSizeBytes();
+            digest.update((file.getId().substring(baseLength) + "\0" + file.getSizeBytes() + "\0" + file.getUploadedAt() + "\n")
+                .getBytes(StandardCharsets.UTF_8));
+        }
+        return new FolderScan(dataDir, files, baseLength, total, BlobStoreService.toHex(digest));
+    }
+
+    private Path cacheFile(String userId, String fingerprint) {
+        return Paths.get(baseDir, "_archives", userId, "cache-" + fingerprint + ".zip").toAbsolutePath().normalize();
+    }
+
+    private static boolean isCacheFile(Path zip) {
+        return zip != null && zip.getFileName().toString().startsWith("cache-");
+    }
+
+    /**
+     * Кеш архивов: удаляет записи, не использовавшиеся cacheHours, а затем
+     * самые давно использованные, пока общий размер больше cacheMaxMb.
+     * Архивы, на которые ссылаются живые задачи, не трогает.
+     */
+    private void evictCache() {
+        Path root = Paths.get(baseDir, "_archives");
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+        Set<Path> inUse = new HashSet<>();
+        for (Job job : jobs.values()) {
+            if (job.zipPath != null) {
+                inUse.add(job.zipPath.toAbsolutePath().normalize());
+            }
+        }
+        List<Path> entries = new ArrayList<>();
+        Map<Path, Long> used = new HashMap<>();
+        Map<Path, Long> sizes = new HashMap<>();
+        long total = 0;
+        try (DirectoryStream<Path> users = Files.newDirectoryStream(root, Files::isDirectory)) {
+            for (Path userDir : users) {
+                try (DirectoryStream<Path> zips = Files.newDirectoryStream(userDir, "cache-*.zip")) {
+                    for (Path zip : zips) {
+                        BasicFileAttributes attrs = Files.readAttributes(zip, BasicFileAttributes.class);
+                        entries.add(zip);
+                        used.put(zip, attrs.lastModifiedTime().toMillis());
+                        sizes.put(zip, attrs.size());
+                        total += attrs.size();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.warn("[archive] cache scan failed msg={}", e.getMessage());
+            return;
+        }
+        entries.sort(Comparator.comparing(used::get));
+        long limit = cacheMaxMb * 1024L * 1024L;
+        long staleBefore = System.currentTimeMillis() - cacheHours * 3600_000L;
+        for (Path zip : entries) {
+            if (total <= limit && used.get(zip) >= staleBefore) {
+                break;
+            }
+            if (inUse.contains(zip.toAbsolutePath().normalize())) {
+                continue;
+            }
+            try {
+                Files.deleteIfExists(zip);
+                total -= sizes.get(zip);
+                log.info("[archive] cache evicted file={} bytes={}", zip, sizes.get(zip));
+            } catch (IOException e) {
+                log.warn("[archive] cache evict failed file={} msg={}", zip, e.getMessage());
+            }
+        }
+    }
+
+    /** Позиция в очереди с 1; 0 - задача уже не в очереди. */
+    private int queuePosition(Job job) {
+        synchronized (queue) {
+            int position = 1;
+            for (Job queued : queue) {
+                if (queued == job) {
+                    return position;
+                }
+                position++;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Снимает задачу из очереди или останавливает запущенную: поток прерывается,
+     * что закрывает читаемый файл (ClosedByInterruptException) и ожидание сжатия.
+     */
+    private void cancel(Job job) {
+        synchronized (queue) {
+            if (queue.remove(job)) {
+                job.state = "cancelled";
+                job.message = "Отменено";
+                publish(job);
+                for (Job queued : queue) {
+                    publish(queued);
+                }
+                return;
+            }
+        }
+        if ("running".equals(job.state)) {
+            job.state = "cancelled";
+            synchronized (job) {
+                if (job.worker != null) {
+                    job.worker.interrupt();
+                }
+            }
+            log.info("[archive] job cancelled jobId={} userId={}", job.jobId, job.userId);
+        }
+    }
+
+    /** Учитывает прочитанные байты в общем лимите чтения; ждет, если лимит исчерпан. */
+    private void throttleRead(long bytes) {
+        if (readBucket == null) {
+            return;
+        }
+        try {
+            readBucket.asBlocking().consume(bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Архивация прервана");
+        }
+    }
+
     private static String safe(String s) {
         return URLEncoder.encode(s == null ? "" : s, StandardCharsets.UTF_8);
     }
 
     public Map<String, Object> getStatus(String userId, String jobId) {
-        cleanupOld();
         Job job = jobs.get(jobId);
         if (job == null || !job.userId.equals(userId)) {
             throw new IllegalStateException("Задача не найдена");
         }
-        return Map.of(
-            "state", job.state,
-            "percent", job.percent,
-            "message", job.message == null ? "" : job.message,
-            "fileName", job.fileName == null ? "" : job.fileName
-        );
+        return statusOf(job);
+    }
+
+    /**
+     * Ставит в рассылку текущее состояние всех задач пользователя: новое
+     * соединение сразу получает то, что вкладка могла пропустить.
+     */
+    public void publishJobs(String userId) {
+        for (Job job : jobs.values()) {
+            if (job.userId.equals(userId)) {
+                publish(job);
+            }
+        }
+    }
+
+    private void publish(Job job) {
+        events.publish(job.userId, "archive", job.jobId, () -> statusOf(job));
+    }
+
+    private Map<String, Object> statusOf(Job job) {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("jobId", job.jobId);
+        status.put("state", job.state);
+        status.put("percent", job.percent);
+        status.put("message", job.message == null ? "" : job.message);
+        status.put("fileName", job.fileName == null ? "" : job.fileName);
+        status.put("queuePosition", queuePosition(job));
+        status.put("filesDone", job.filesDone);
+        status.put("filesTotal", job.filesTotal);
+        status.put("bytesDone", job.bytesDone);
+        status.put("bytesTotal", job.bytesTotal);
+        long bytesPerSec = job.bytesPerSec;
+        long etaSeconds = -1;
+        if ("running".equals(job.state) && job.startedAtMs > 0) {
+            long elapsedMs = System.currentTimeMillis() - job.startedAtMs;
+            bytesPerSec = elapsedMs > 0 ? job.bytesDone * 1000 / elapsedMs : 0;
+            if (bytesPerSec > 0) {
+                etaSeconds = (job.bytesTotal - job.bytesDone) / bytesPerSec;
+            }
+        }
+        status.put("bytesPerSec", bytesPerSec);
+        status.put("etaSeconds", etaSeconds);
+        return status;
     }
 
     public Path getZipPathForDownload(String userId, String jobId) {
-        cleanupOld();
         Job job = jobs.get(jobId);
         if (job == null || !job.userId.equals(userId)) {
             throw new IllegalStateException("Задача не найдена");
@@ -100,16 +604,20 @@ public class ArchiveService {
             return;
         }
         jobs.remove(jobId);
-        if (job.zipPath != null) {
+        cancel(job);
+        if (job.zipPath != null && !isCacheFile(job.zipPath)) {
             try {
                 Files.deleteIfExists(job.zipPath);
             } catch (IOException ignored) {
             }
         }
+        saveJournal();
     }
 
     private void runJob(Job job) {
-        job.state = "running";
+        if (!"running".equals(job.state)) {
+            return;
+        }
         job.percent = 0;
 
         Path dataDir = storageService.getDataDir(job.userId).toAbsolutePath().normalize();
@@ -128,22 +636,11 @@ public class ArchiveService {
             return;
         }
 
-        Path relBase = job.folderPath.isBlank() ? dataDir : source.getParent();
-        if (relBase == null) relBase = dataDir;
-        final Path relBaseFinal = relBase;
-
         try {
-            AtomicLong totalBytes = new AtomicLong(0);
-            try (var walk = Files.walk(source)) {
-                walk.filter(Files::isRegularFile).forEach(p -> {
-                    try {
-                        totalBytes.addAndGet(Files.size(p));
-                    } catch (IOException ignored) {
-                    }
-                });
-            }
-
-            long total = totalBytes.get();
+            FolderScan scan = scanFolder(job.userId, dataDir, source);
+            job.filesTotal = scan.files.size();
+            job.bytesTotal = scan.totalBytes;
+            long total = scan.totalBytes;
             if (total <= 0) total = 1;
             final long totalFinal = total;
 
@@ -193,54 +690,64 @@ public class ArchiveService {
             job.zipPath = tmp;
             log.info("[archive] job building jobId={} source={} out={} folderBytes={}", job.jobId, source, tmp, totalFinal);
 
-            try (ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)))) {
-                byte[] buffer = new byte[64 * 1024];
-                AtomicLong doneBytes = new AtomicLong(0);
-
-                try (var walk = Files.walk(source)) {
-                    walk.filter(Files::isRegularFile).sorted(Comparator.comparing(Path::toString)).forEach(file -> {
+            long startedNs = System.nanoTime();
+            job.startedAtMs = System.currentTimeMillis();
+            AtomicLong doneBytes = new AtomicLong(0);
+            int inexact;
+            try (ParallelZipWriter zip = new ParallelZipWriter(
+                    new BufferedOutputStream(Files.newOutputStream(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE), 256 * 1024),
+                    compressPool, compressThreads)) {
+                inexact = writeFolder(zip, scan, () -> "running".equals(job.state),
+                    entryName -> job.message = entryName,
+                    () -> {
+                        job.filesDone++;
+                        publish(job);
+                    },
+                    read -> {
                         if (!"running".equals(job.state)) {
-                            return;
-                        }
-                        String entryName;
-                        try {
-                            entryName = relBaseFinal.relativize(file).toString().replace("\\", "/");
-                        } catch (Exception e) {
-                            return;
-                        }
-                        job.message = entryName;
-                        try {
-                            ZipEntry entry = new ZipEntry(entryName);
-                            entry.setTime(Files.getLastModifiedTime(file).toMillis());
-                            zos.putNextEntry(entry);
-
-                            try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
-                                int read;
-                                while ((read = in.read(buffer)) != -1) {
-                                    zos.write(buffer, 0, read);
-                                    long d = doneBytes.addAndGet(read);
-                                    int pct = (int) Math.min(99, Math.max(0, (d * 100) / totalFinal));
-                                    job.percent = pct;
-                                }
-                            }
-
-                            zos.closeEntry();
-                        } catch (IOException ignored) {
+                            throw new CancellationException("Архивация отменена");
                         }
+                        throttleRead(read);
+                        long d = doneBytes.addAndGet(read);
+                        job.bytesDone = d;
+                        job.percent = (int) Math.min(99, Math.max(0, (d * 100) / totalFinal));
+                        publish(job);
                     });
+                if (!"running".equals(job.state)) {
+                    throw new CancellationException("Архивация отменена");
                 }
+                zip.finish();
+                job.zipBytes = zip.getBytesWritten();
+            }
+            if (inexact > 0) {
+                // архив не совпадает со снимком, по отпечатку которого его нашли бы в кеше
+                log.info("[archive] cache skipped jobId={} changedFiles={}", job.jobId, inexact);
+            } else if (cacheMaxMb > 0) {
+                // готовый архив становится записью кеша для следующих запросов этой папки
+                Path cached = cacheFile(job.userId, scan.fingerprint);
+                Files.move(tmp, cached, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                job.zipPath = cached;
             }
 
+            double seconds = Math.max(1e-3, (System.nanoTime() - startedNs) / 1e9);
+            job.bytesPerSec = (long) (doneBytes.get() / seconds);
             job.percent = 100;
             job.state = "done";
             job.message = "Готово";
             job.completedAtMs = System.currentTimeMillis();
-            log.info("[archive] job done jobId={} out={} bytes={}", job.jobId, job.zipPath, totalFinal);
+            log.info("[archive] job done jobId={} out={} bytes={} zipBytes={} seconds={} mbPerSec={} threads={}",
+                job.jobId, job.zipPath, doneBytes.get(), job.zipBytes, String.format("%.1f", seconds),
+                String.format("%.1f", job.bytesPerSec / 1048576.0), compressThreads);
         } catch (Exception e) {
-            job.state = "error";
-            job.message = e.getMessage() == null ? "Ошибка архивации" : e.getMessage();
-            job.percent = 0;
-            log.error("[archive] job error jobId={} path='{}'", job.jobId, job.folderPath, e);
+            if ("cancelled".equals(job.state)) {
+                job.message = "Отменено";
+                log.info("[archive] job stopped jobId={} path='{}'", job.jobId, job.folderPath);
+            } else {
+                job.state = "error";
+                job.message = e.getMessage() == null ? "Ошибка архивации" : e.getMessage();
+                job.percent = 0;
+                log.error("[archive] job error jobId={} path='{}'", job.jobId, job.folderPath, e);
+            }
             if (job.zipPath != null) {
                 try {
                     Files.deleteIfExists(job.zipPath);
@@ -251,9 +758,127 @@ public class ArchiveService {
         }
     }
 
-    private void cleanupOld() {
+    /**
+     * Папка для потокового архива. Проверяется до начала ответа, чтобы
+     * ошибка ушла клиенту статусом, а не оборванным телом.
+     */
+    public Path resolveStreamSource(String userId, String folderPath) {
+        Path dataDir = storageService.getDataDir(userId).toAbsolutePath().normalize();
+        String path = folderPath == null ? "" : folderPath;
+        Path source = path.isBlank() ? dataDir : dataDir.resolve(path).normalize();
+        if (!source.startsWith(dataDir)) {
+            throw new IllegalStateException("Некорректный путь");
+        }
+        if (!Files.isDirectory(source)) {
+            throw new IllegalStateException("Папка не найдена");
+        }
+        return source;
+    }
+
+    /**
+     * Пишет ZIP папки прямо в ответ по мере чтения файлов: без временного
+     * архива, требований к свободному месту и лимита MAX_ARCHIVE_BYTES.
+     * Обрыв соединения прерывает сборку (IOException из out).
+     */
+    public void streamArchive(String userId, Path source, OutputStream out) throws IOException {
+        Path dataDir = storageService.getDataDir(userId).toAbsolutePath().normalize();
+        FolderScan scan = scanFolder(userId, dataDir, source);
+        long startedNs = System.nanoTime();
+        AtomicLong doneBytes = new AtomicLong(0);
+        // блоки в выход пишет этот же поток, так что медленный клиент
+        // притормаживает и чтение, и сжатие (буфер - несколько блоков)
+        ParallelZipWriter zip = new ParallelZipWriter(out, compressPool, compressThreads);
+        try {
+            writeFolder(zip, scan, () -> true, entryName -> { }, () -> { }, read -> {
+                throttleRead(read);
+                doneBytes.addAndGet(read);
+            });
+            zip.finish();
+        } catch (IOException | RuntimeException e) {
+            zip.abort();
+            throw e;
+        }
+        double seconds = Math.max(1e-3, (System.nanoTime() - startedNs) / 1e9);
+        log.info("[archive] stream done userId={} source={} bytes={} zipBytes={} seconds={} mbPerSec={}",
+            userId, source, doneBytes.get(), zip.getBytesWritten(), String.format("%.1f", seconds),
+            String.format("%.1f", doneBytes.get() / seconds / 1048576.0));
+    }
+
+    /**
+     * Добавляет в архив файлы из списка каталога в порядке id. Размер и время
+     * изменения берутся из каталога; файл, удаленный после снимка, пропускается.
+     *
+     * @return число файлов, пропущенных или прочитанных с другим размером, чем
+     *         в снимке: такой архив не соответствует отпечатку папки
+     */
+    private int writeFolder(ParallelZipWriter zip, FolderScan scan, BooleanSupplier running,
+                            Consumer<String> onEntry, Runnable onFileDone, LongConsumer onRead) throws IOException {
+        int inexact = 0;
+        for (FileData file : scan.files) {
+            if (!running.getAsBoolean()) {
+                break;
+            }
+            String entryName = file.getId().substring(scan.baseLength);
+            onEntry.accept(entryName);
+            try {
+                long written = zip.addFile(entryName, scan.dataDir.resolve(file.getId()),
+                    Instant.parse(file.getUploadedAt()).toEpochMilli(), file.getSizeBytes(), onRead);
+                if (written != file.getSizeBytes()) {
+                    inexact++;
+                }
+            } catch (NoSuchFileException | AccessDeniedException e) {
+                inexact++;
+                log.warn("[archive] skip file entry='{}' msg={}", entryName, e.getMessage());
+            }
+            onFileDone.run();
+        }
+        return inexact;
+    }
+
+    /**
+     * Плановая уборка (CleanupTask): удаляет задачи с истекшим сроком и их
+     * архивы, затем файлы job-*.zip, которых нет в реестре - остатки задач,
+     * потерянных до появления журнала или при его повреждении, - и
+     * ограничивает кеш архивов.
+     */
+    public void expireJobs() {
+        if (cleanupOld()) {
+            saveJournal();
+        }
+        sweepOrphans();
+        if (cacheMaxMb > 0) {
+            evictCache();
+        }
+    }
+
+    private void sweepOrphans() {
+        Path root = Paths.get(baseDir, "_archives");
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+        try (DirectoryStream<Path> users = Files.newDirectoryStream(root, Files::isDirectory)) {
+            for (Path userDir : users) {
+                try (DirectoryStream<Path> zips = Files.newDirectoryStream(userDir, "job-*.zip")) {
+                    for (Path zip : zips) {
+                        String name = zip.getFileName().toString();
+                        String jobId = name.substring("job-".length(), name.length() - ".zip".length());
+                        // задача регистрируется до создания файла, так что файл без задачи ничей
+                        if (!jobs.containsKey(jobId)) {
+                            long size = Files.size(zip);
+                            Files.deleteIfExists(zip);
+                            log.info("[archive] orphan removed file={} bytes={}", zip, size);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.warn("[archive] orphan sweep failed msg={}", e.getMessage());
+        }
+    }
+
+    private boolean cleanupOld() {
         long cutoff = System.currentTimeMillis() - MAX_JOB_AGE_MS;
-        jobs.values().removeIf(job -> {
+        return jobs.values().removeIf(job -> {
             long ttl = cutoff;
             if ("done".equals(job.state) && job.completedAtMs > 0) {
                 ttl = System.currentTimeMillis() - DONE_JOB_TTL_MS;
@@ -263,7 +888,8 @@ public class ArchiveService {
             }
 
             if (job.createdAtMs < cutoff || ("done".equals(job.state) && job.completedAtMs > 0 && job.completedAtMs < (System.currentTimeMillis() - DONE_JOB_TTL_MS))) {
-                if (job.zipPath != null) {
+                cancel(job);
+                if (job.zipPath != null && !isCacheFile(job.zipPath)) {
                     try {
                         Files.deleteIfExists(job.zipPath);
                     } catch (IOException ignored) {
@@ -275,6 +901,22 @@ public class ArchiveService {
         });
     }
 
+    private static class FolderScan {
+        final Path dataDir;
+        final List<FileData> files;
+        final int baseLength;
+        final long totalBytes;
+        final String fingerprint;
+
+        FolderScan(Path dataDir, List<FileData> files, int baseLength, long totalBytes, String fingerprint) {
+            this.dataDir = dataDir;
+            this.files = files;
+            this.baseLength = baseLength;
+            this.totalBytes = totalBytes;
+            this.fingerprint = fingerprint;
+        }
+    }
+
     private static class Job {
         final String jobId;
         final String userId;
@@ -288,13 +930,26 @@ public class ArchiveService {
         volatile String message = "";
 
         volatile Path zipPath;
+        Thread worker; // под synchronized (job)
+        volatile long zipBytes = 0;
+        volatile long bytesPerSec = 0;
+
+        volatile long startedAtMs = 0;
+        volatile int filesTotal = 0;
+        volatile int filesDone = 0; // пишет только поток задачи
+        volatile long bytesTotal = 0;
+        volatile long bytesDone = 0;
 
         Job(String jobId, String userId, String folderPath, String fileName) {
+            this(jobId, userId, folderPath, fileName, System.currentTimeMillis());
+        }
+
+        Job(String jobId, String userId, String folderPath, String fileName, long createdAtMs) {
             this.jobId = jobId;
             this.userId = userId;
             this.folderPath = folderPath;
             this.fileName = fileName;
-            this.createdAtMs = System.currentTimeMillis();
+            this.createdAtMs = createdAtMs;
         }
     }
 }
@@ -0,0 +1,160 @@
+package org.ejectfb.ejectcloud.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Дедуплицирующее хранилище содержимого (ejectcloud.storage.dedup=true).
+ * Содержимое файла хранится один раз в Data/_blobs/&lt;xx&gt;/&lt;sha256&gt;, а файл
+ * пользователя - жесткая ссылка на блоб. Число ссылок файловой системы
+ * служит счетчиком ссылок: блоб, на который не ссылается ни один
+ * пользователь (nlink == 1), удаляется сборщиком мусора. Перемещение,
+ * переименование и корзина остаются операциями над ссылками, а квота
+ * по-прежнему считается по файлам каждого пользователя.
+ */
+@Service
+public class BlobStoreService {
+    private static final Logger log = LoggerFactory.getLogger(BlobStoreService.class);
+
+    @Value("${ejectcloud.data-dir:./Data}")
+    private String baseDir;
+
+    @Value("${ejectcloud.storage.dedup:false}")
+    private boolean enabled;
+
+    // ссылки создаются под read-блокировкой, сборка мусора - под write:
+    // иначе блоб может быть удален между проверкой и созданием ссылки
+    private final ReadWriteLock gcLock = new ReentrantReadWriteLock();
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static String toHex(MessageDigest digest) {
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    public boolean exists(String sha256) {
+        return isValidDigest(sha256) && Files.isRegularFile(blobPath(sha256));
+    }
+
+    /** SHA-256 уже записанного файла (для загрузок по частям). */
+    public String digest(Path file) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[256 * 1024];
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return toHex(digest);
+    }
+
+    /**
+     * Создает target как ссылку на блоб с данным хешем. Если блоба еще нет,
+     * им становится tempFile (переносится в хранилище), иначе tempFile
+     * удаляется - дубликат не занимает места. Повторный вызов после
+     * FileAlreadyExistsException (занятое имя) безопасен.
+     *
+     * @param tempFile полностью записанный файл или null, если блоб заведомо есть
+     */
+    public void link(Path tempFile, String sha256, Path target) throws IOException {
+        if (!isValidDigest(sha256)) {
+            throw new IllegalArgumentException("Invalid digest");
+        }
+        Path blob = blobPath(sha256);
+        gcLock.readLock().lock();
+        try {
+            if (!Files.exists(blob)) {
+                if (tempFile == null || !Files.exists(tempFile)) {
+                    throw new NoSuchFileException(blob.toString());
+                }
+                Files.createDirectories(blob.getParent());
+                try {
+                    Files.move(tempFile, blob, StandardCopyOption.ATOMIC_MOVE);
+                } catch (FileAlreadyExistsException e) {
+                    // тот же файл параллельно загрузил кто-то еще
+                }
+            }
+            if (tempFile != null) {
+                Files.deleteIfExists(tempFile);
+            }
+            try {
+                Files.createLink(target, blob);
+            } catch (FileAlreadyExistsException e) {
+                throw e;
+            } catch (IOException | UnsupportedOperationException e) {
+                // нет жестких ссылок или исчерпан лимит ссылок на файл: отдельная копия
+                log.warn("[blobs] link failed blob={} msg={}, copying", sha256, e.getMessage());
+                Files.copy(blob, target);
+            }
+        } finally {
+            gcLock.readLock().unlock();
+        }
+    }
+
+    /** Удаляет блобы, на которые больше не ссылается ни один файл пользователя. */
+    public int collectGarbage() {
+        Path root = blobsDir();
+        if (!Files.isDirectory(root)) {
+            return 0;
+        }
+        int removed = 0;
+        long freed = 0;
+        gcLock.writeLock().lock();
+        try (var walk = Files.walk(root)) {
+            for (Path blob : (Iterable<Path>) walk.filter(Files::isRegularFile)::iterator) {
+                try {
+                    if (((Number) Files.getAttribute(blob, "unix:nlink")).intValue() <= 1) {
+                        long size = Files.size(blob);
+                        Files.delete(blob);
+                        removed++;
+                        freed += size;
+                    }
+                } catch (IOException | UnsupportedOperationException e) {
+                    log.warn("[blobs] gc skip blob={} msg={}", blob.getFileName(), e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            log.warn("[blobs] gc failed msg={}", e.getMessage());
+        } finally {
+            gcLock.writeLock().unlock();
+        }
+        if (removed > 0) {
+            log.info("[blobs] gc removed={} freedBytes={}", removed, freed);
+        }
+        return removed;
+    }
+
+    private Path blobsDir() {
+        return Paths.get(baseDir, "_blobs");
+    }
+
+    private Path blobPath(String sha256) {
+        return blobsDir().resolve(sha256.substring(0, 2)).resolve(sha256);
+    }
+
+    private static boolean isValidDigest(String sha256) {
+        return sha256 != null && sha256.matches("[0-9a-f]{64}");
+    }
+}
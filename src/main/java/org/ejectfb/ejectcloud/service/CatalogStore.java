@@ -0,0 +1,40 @@
+package org.ejectfb.ejectcloud.service;
+
+import org.ejectfb.ejectcloud.model.FileData;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Строки каталога файлов по пользователям, упорядоченные по id файла.
+ * Диапазон [from, to) по id дает содержимое папки без обхода диска.
+ * Реализация выбирается ejectcloud.metadata.store.
+ */
+public interface CatalogStore {
+
+    /** Есть ли сохраненный каталог; если нет, FileCatalogService строит его обходом диска. */
+    boolean contains(String userId);
+
+    List<FileData> list(String userId);
+
+    /** Записи с from &lt;= id &lt; to в порядке id. */
+    List<FileData> listRange(String userId, String from, String to);
+
+    FileData get(String userId, String fileId);
+
+    void put(String userId, FileData fileData);
+
+    FileData remove(String userId, String fileId);
+
+    /** Удаляет записи диапазона [from, to) и возвращает их. */
+    List<FileData> removeRange(String userId, String from, String to);
+
+    /** Заменяет каталог целиком (сверка с диском). */
+    void replace(String userId, Map<String, FileData> entries);
+
+    /** Забывает каталог (пользователь удален или переименован). */
+    void forget(String userId);
+
+    /** Сохраняет накопленные изменения. */
+    void flush();
+}
@@ -0,0 +1,288 @@
+package org.ejectfb.ejectcloud.service;
+
+import org.ejectfb.ejectcloud.model.FileData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.*;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/**
+ * Каталог метаданных файлов пользователя (id, имя, размер, дата изменения).
+ * Хранится в CatalogStore (files.xml или база метаданных), обновляется
+ * инкрементально операциями FileStorageService, поэтому список файлов не
+ * требует обхода диска. При старте каталог сверяется с содержимым папки data.
+ * Изменения из нескольких шагов (перенос, обновление папки) идут под
+ * блокировкой записи каталога пользователя, чтения - под блокировкой чтения,
+ * поэтому список не видит запись пропавшей или задвоенной посередине операции.
+ */
+@Service
+public class FileCatalogService {
+    private static final Logger log = LoggerFactory.getLogger(FileCatalogService.class);
+
+    @Value("${ejectcloud.data-dir:./Data}")
+    private String baseDir;
+
+    private final CatalogStore store;
+    private final UserMetadataStore users;
+    private final Map<String, ReadWriteLock> locks = new ConcurrentHashMap<>();
+
+    public FileCatalogService(CatalogStore store, UserMetadataStore users) {
+        this.store = store;
+        this.users = users;
+    }
+
+    public List<FileData> list(String userId) {
+        ensureLoaded(userId);
+        return read(userId, () -> store.list(userId));
+    }
+
+    /** Файлы папки (для пустого пути - все файлы) в порядке id, без обхода диска. */
+    public List<FileData> listFolder(String userId, String folderPath) {
+        ensureLoaded(userId);
+        if (folderPath == null || folderPath.isEmpty()) {
+            return read(userId, () -> store.list(userId));
+        }
+        // все id вида "folderPath/..." лежат в диапазоне ["folderPath/", "folderPath0"), т.к. '0' следует за '/'
+        return read(userId, () -> store.listRange(userId, folderPath + "/", folderPath + "0"));
+    }
+
+    public FileData get(String userId, String fileId) {
+        if (fileId == null) {
+            return null;
+        }
+        ensureLoaded(userId);
+        return read(userId, () -> store.get(userId, fileId));
+    }
+
+    /**
+     * Приводит записи по пути к текущему состоянию диска: для файла -
+     * одна строка, для папки - все строки под ней, включая удаление
+     * пропавших файлов.
+     */
+    public void refresh(String userId, String fileId) {
+        Path dataDir = dataDir(userId).toAbsolutePath().normalize();
+        Path path = dataDir.resolve(fileId.startsWith("/") ? fileId.substring(1) : fileId).normalize();
+        if (!path.startsWith(dataDir) || path.equals(dataDir)) {
+            return;
+        }
+        String id = dataDir.relativize(path).toString().replace("\\", "/");
+        ensureLoaded(userId);
+        if (Files.isDirectory(path)) {
+            Map<String, FileData> scanned = new TreeMap<>();
+            scan(dataDir, path, scanned);
+            write(userId, () -> {
+                store.remove(userId, id);
+                store.removeRange(userId, id + "/", id + "0");
+                for (FileData fileData : scanned.values()) {
+                    store.put(userId, fileData);
+                }
+                return null;
+            });
+            return;
+        }
+        FileData current = null;
+        if (Files.isRegularFile(path)) {
+            try {
+                current = toFileData(dataDir, path);
+            } catch (IOException e) {
+                // файл пропал между проверками - удаляем запись
+            }
+        }
+        FileData fileData = current;
+        write(userId, () -> {
+            if (fileData != null) {
+                store.put(userId, fileData);
+            } else {
+                store.remove(userId, id);
+            }
+            return null;
+        });
+    }
+
+    public FileData remove(String userId, String fileId) {
+        ensureLoaded(userId);
+        return write(userId, () -> store.remove(userId, fileId));
+    }
+
+    public List<FileData> removeFolder(String userId, String folderPath) {
+        ensureLoaded(userId);
+        return write(userId, () -> store.removeRange(userId, folderPath + "/", folderPath + "0"));
+    }
+
+    public void move(String userId, String fileId, String newFileId) {
+        ensureLoaded(userId);
+        FileData moved = write(userId, () -> {
+            FileData existing = store.remove(userId, fileId);
+            if (existing != null) {
+                store.put(userId, copy(existing, newFileId));
+            }
+            return existing;
+        });
+        if (moved == null) {
+            refresh(userId, newFileId);
+        }
+    }
+
+    public void moveFolder(String userId, String folderPath, String newFolderPath) {
+        ensureLoaded(userId);
+        write(userId, () -> {
+            List<FileData> moved = store.removeRange(userId, folderPath + "/", folderPath + "0");
+            for (FileData fileData : moved) {
+                String newId = newFolderPath + fileData.getId().substring(folderPath.length());
+                store.put(userId, copy(fileData, newId));
+            }
+            return null;
+        });
+    }
+
+    /** Полная сверка каталога пользователя с диском. */
+    public void reconcile(String userId) {
+        Map<String, FileData> scanned = new TreeMap<>();
+        Path dataDir = dataDir(userId);
+        if (Files.isDirectory(dataDir)) {
+            scan(dataDir, dataDir, scanned);
+        }
+        write(userId, () -> {
+            if (!store.contains(userId) || !sameEntries(store.list(userId), scanned)) {
+                store.replace(userId, scanned);
+            }
+            return null;
+        });
+    }
+
+    public void reconcileAll() {
+        try {
+            for (String userId : users.userIds()) {
+                reconcile(userId);
+            }
+        } catch (IOException e) {
+            log.warn("[catalog] reconcile failed msg={}", e.getMessage());
+        }
+        flush();
+    }
+
+    /** Забывает каталог (пользователь удален или переименован). */
+    public void evict(String userId) {
+        write(userId, () -> {
+            store.forget(userId);
+            return null;
+        });
+    }
+
+    @Scheduled(fixedDelay = 5000)
+    public void flush() {
+        store.flush();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flush();
+    }
+
+    /** Каталога еще нет (новый пользователь или старые данные) - строим обходом диска. */
+    private void ensureLoaded(String userId) {
+        if (read(userId, () -> store.contains(userId))) {
+            return;
+        }
+        write(userId, () -> {
+            if (!store.contains(userId)) {
+                Map<String, FileData> scanned = new TreeMap<>();
+                Path dataDir = dataDir(userId);
+                if (Files.isDirectory(dataDir)) {
+                    scan(dataDir, dataDir, scanned);
+                }
+                store.replace(userId, scanned);
+            }
+            return null;
+        });
+    }
+
+    private <T> T read(String userId, Supplier<T> action) {
+        ReadWriteLock lock = lock(userId);
+        lock.readLock().lock();
+        try {
+            return action.get();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private <T> T write(String userId, Supplier<T> action) {
+        ReadWriteLock lock = lock(userId);
+        lock.writeLock().lock();
+        try {
+            return action.get();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private ReadWriteLock lock(String userId) {
+        return locks.computeIfAbsent(userId, k -> new ReentrantReadWriteLock());
+    }
+
+    private void scan(Path dataDir, Path start, Map<String, FileData> target) {
+        try (var walk = Files.walk(start)) {
+            walk.filter(Files::isRegularFile).forEach(path -> {
+                try {
+                    FileData fileData = toFileData(dataDir, path);
+                    target.put(fileData.getId(), fileData);
+                } catch (IOException e) {
+                    // skip file
+                }
+            });
+        } catch (IOException e) {
+            log.warn("[catalog] scan failed dir={} msg={}", start, e.getMessage());
+        }
+    }
+
+    private static FileData toFileData(Path dataDir, Path path) throws IOException {
+        FileData fileData = new FileData();
+        fileData.setId(dataDir.relativize(path).toString().replace("\\", "/"));
+        fileData.setFilename(path.getFileName().toString());
+        fileData.setSizeBytes(Files.size(path));
+        fileData.setUploadedAt(Instant.ofEpochMilli(Files.getLastModifiedTime(path).toMillis()).toString());
+        return fileData;
+    }
+
+    private static FileData copy(FileData source, String newId) {
+        FileData fileData = new FileData();
+        fileData.setId(newId);
+        fileData.setFilename(newId.substring(newId.lastIndexOf('/') + 1));
+        fileData.setSizeBytes(source.getSizeBytes());
+        fileData.setUploadedAt(source.getUploadedAt());
+        return fileData;
+    }
+
+    private static boolean sameEntries(List<FileData> current, Map<String, FileData> scanned) {
+        if (current.size() != scanned.size()) {
+            return false;
+        }
+        for (FileData other : current) {
+            FileData fileData = scanned.get(other.getId());
+            if (fileData == null
+                || other.getSizeBytes() != fileData.getSizeBytes()
+                || !fileData.getUploadedAt().equals(other.getUploadedAt())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Path dataDir(String userId) {
+        return Paths.get(baseDir, userId, "data");
+    }
+}
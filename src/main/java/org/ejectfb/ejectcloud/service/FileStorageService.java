@@ -6,15 +6,16 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
-import jakarta.xml.bind.JAXBContext;
-import jakarta.xml.bind.Marshaller;
-import jakarta.xml.bind.Unmarshaller;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
 import java.time.Instant;
 import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 @Service
 public class FileStorageService {
@@ -25,16 +26,33 @@ public class FileStorageService {
     @Value("${ejectcloud.share.expire-hours:24}")
     private int shareExpireHours;
     
+    private static final int UPLOAD_BUFFER_SIZE = 256 * 1024;
+    private static final int MAX_BATCH_OPERATIONS = 1000;
+    
     private final UserService userService;
+    private final FileCatalogService fileCatalog;
+    private final UsageService usageService;
+    private final ShareIndexService shareIndexService;
+    private final BlobStoreService blobStore;
     
-    public FileStorageService(UserService userService) {
+    public FileStorageService(UserService userService, FileCatalogService fileCatalog, UsageService usageService,
+                              ShareIndexService shareIndexService, BlobStoreService blobStore) {
         this.userService = userService;
+        this.fileCatalog = fileCatalog;
+        this.usageService = usageService;
+        this.shareIndexService = shareIndexService;
+        this.blobStore = blobStore;
     }
+
     
     public UserService getUserService() {
         return userService;
     }
     
+    // Индекс ссылок пользователя по fileId, строится из UserData реестра и
+    // пересобирается, когда реестр отдает новый экземпляр (после сохранения)
+    private final Map<String, UserShares> shareIndex = new ConcurrentHashMap<>();
+    
     private final Map<String, String> activeTokens = new ConcurrentHashMap<>();
     private final Map<String, Instant> tokenActivity = new ConcurrentHashMap<>();
     
@@ -100,162 +118,462 @@ public class FileStorageService {
     }
     
     private UserData loadUserData(String telegramId) {
-        Path userFile = getUserDir(telegramId).resolve("user.xml");
-        if (!Files.exists(userFile)) {
-            return null;
-        }
-        
-        try {
-            JAXBContext context = JAXBContext.newInstance(UserData.class);
-            Unmarshaller unmarshaller = context.createUnmarshaller();
-            return (UserData) unmarshaller.unmarshal(userFile.toFile());
-        } catch (Exception e) {
-            throw new RuntimeException("Cannot load user data", e);
-        }
+        return userService.loadUserData(telegramId);
     }
     
     public void saveUserData(String telegramId, UserData userData) {
-        Path userFile = getUserDir(telegramId).resolve("user.xml");
-        try {
-            JAXBContext context = JAXBContext.newInstance(UserData.class);
-            Marshaller marshaller = context.createMarshaller();
-            marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
-            marshaller.marshal(userData, userFile.toFile());
-        } catch (Exception e) {
-            throw new RuntimeException("Cannot save user data", e);
-        }
+        // Сохраняем через UserService, чтобы реестр пользователей оставался актуальным
+        userService.saveUserData(telegramId, userData);
     }
     
     public boolean userExists(String telegramId) {
-        Path userFile = getUserDir(telegramId).resolve("user.xml");
-        return Files.exists(userFile);
+        return userService.findUserById(telegramId) != null;
     }
     
     public UserData getOrCreateUser(String userId, String username, long quotaBytes) {
-        UserData userData = loadUserData(userId);
-        if (userData == null) {
-            userData = new UserData();
-            userData.setId(userId);
-            userData.setDisplayName(username);
-            userData.setQuotaBytes(quotaBytes);
-            userData.setCreatedAt(Instant.now().toString());
-            saveUserData(userId, userData);
+        ReentrantLock lock = userLock(userId);
+        lock.lock();
+        try {
+            UserData userData = loadUserData(userId);
+            if (userData == null) {
+                userData = new UserData();
+                userData.setId(userId);
+                userData.setDisplayName(username);
+                userData.setQuotaBytes(quotaBytes);
+                userData.setCreatedAt(Instant.now().toString());
+                saveUserData(userId, userData);
+            }
+            return userData;
+        } finally {
+            lock.unlock();
         }
-        return userData;
     }
     
     public FileData uploadFile(String telegramId, MultipartFile file, String path) throws IOException {
+        try (InputStream in = file.getInputStream()) {
+            return uploadStream(telegramId, in, file.getOriginalFilename(), path, file.getSize(), null);
+        }
+    }
+    
+    /**
+     * Потоковая загрузка: байты пишутся сразу во временный файл в
+     * Data/&lt;user&gt;/.uploads (та же файловая система, что и data) и затем
+     * переименовываются на место, так что частично записанный файл никогда не
+     * виден в списке. Место резервируется в UsageService (весь Content-Length
+     * сразу, сверх него - по мере поступления данных), поэтому параллельные
+     * загрузки не могут вместе превысить квоту; резерв снимается в конце.
+     *
+     * @param declaredSize размер из Content-Length или -1, если неизвестен
+     * @param expectedSha256 SHA-256 содержимого, если клиент знает его заранее;
+     *                       в режиме дедупликации при наличии такого блоба тело
+     *                       только хешируется и на диск не пишется
+     */
+    public FileData uploadStream(String telegramId, InputStream in, String filename, String path,
+                                 long declaredSize, String expectedSha256) throws IOException {
         UserData userData = loadUserData(telegramId);
         if (userData == null) {
             userData = getOrCreateUser(telegramId, "user_" + telegramId, 1073741824L);
         }
         
-        String filename = file.getOriginalFilename();
-        if (filename == null || filename.trim().isEmpty()) {
-            throw new IllegalStateException("Некорректное имя файла");
-        }
-        
-        // Валидация имени файла
-        if (filename.matches(".*[<>:\"/\\|?*].*")) {
-            throw new IllegalStateException("Имя файла содержит запрещенные символы: < > : \" / \\ | ? *");
-        }
+        validateUploadFilename(filename);
         
-        long currentUsed = calculateTotalUsedBytes(telegramId);
-        long fileSize = file.getSize();
-        if (currentUsed + fileSize > userData.getQuotaBytes()) {
-            double quotaGB = userData.getQuotaBytes() / 1024.0 / 1024.0 / 1024.0;
-            double usedMB = currentUsed / 1024.0 / 1024.0;
-            double fileMB = fileSize / 1024.0 / 1024.0;
-            throw new IllegalStateException(
-                String.format("Недостаточно места! Использовано: %.2f MB, файл: %.2f MB, квота: %.2f GB", 
-                    usedMB, fileMB, quotaGB)
-            );
-        }
-        
-        Path dataDir = getUserDir(telegramId).resolve("data");
-        if (path != null && !path.isEmpty()) {
-            dataDir = dataDir.resolve(path);
+        long reservedBytes = Math.max(declaredSize, 0);
+        if (!usageService.tryReserve(telegramId, reservedBytes, userData.getQuotaBytes())) {
+            throw quotaExceeded(userData, usedWithReserved(telegramId), declaredSize);
         }
         
+        Path tempFile = null;
         try {
-            Files.createDirectories(dataDir);
-        } catch (IOException e) {
-            throw new RuntimeException("Не удалось создать папку", e);
+            resolveUploadDir(telegramId, path);
+            
+            MessageDigest digest = blobStore.isEnabled() ? BlobStoreService.newDigest() : null;
+            boolean knownBlob = digest != null && blobStore.exists(expectedSha256);
+            tempFile = knownBlob ? null : Files.createTempFile(getUploadsDir(telegramId), "upload-", ".part");
+            long written = 0;
+            byte[] buffer = new byte[UPLOAD_BUFFER_SIZE];
+            try (OutputStream out = knownBlob ? OutputStream.nullOutputStream() : Files.newOutputStream(tempFile)) {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    written += read;
+                    if (written > reservedBytes) {
+                        if (!usageService.tryReserve(telegramId, written - reservedBytes, userData.getQuotaBytes())) {
+                            throw quotaExceeded(userData, usedWithReserved(telegramId), written);
+                        }
+                        reservedBytes = written;
+                    }
+                    if (digest != null) {
+                        digest.update(buffer, 0, read);
+                    }
+                    out.write(buffer, 0, read);
+                }
+            }
+            String sha256 = digest != null ? BlobStoreService.toHex(digest) : null;
+            if (knownBlob && !sha256.equals(expectedSha256)) {
+                throw new IllegalStateException("Контрольная сумма файла не совпадает");
+            }
+            return commitUpload(telegramId, tempFile, filename, path, written, sha256);
+        } finally {
+            usageService.release(telegramId, reservedBytes);
+            if (tempFile != null) {
+                Files.deleteIfExists(tempFile);
+            }
         }
-        
+    }
+    
+    private long usedWithReserved(String telegramId) {
+        return calculateTotalUsedBytes(telegramId) + usageService.getReservedBytes(telegramId);
+    }
+    
+    /**
+     * Переименовывает полностью записанный файл из .uploads в папку
+     * пользователя и учитывает его в каталоге и счетчиках места.
+     *
+     * @param sha256 хеш содержимого в режиме дедупликации (файл становится
+     *               ссылкой на блоб) или null
+     */
+    public FileData commitUpload(String telegramId, Path tempFile, String filename, String path,
+                                 long size, String sha256) throws IOException {
+        Path dataDir = resolveUploadDir(telegramId, path);
+        
+        // Если файл с таким именем уже есть (или появился параллельно), берем уникальное
+        String requestedName = filename;
         Path filePath = dataDir.resolve(filename);
-        
-        // Проверяем, существует ли файл с таким именем
         if (Files.exists(filePath)) {
-            filename = generateUniqueFilename(dataDir, filename);
+            filename = generateUniqueFilename(dataDir, requestedName);
             filePath = dataDir.resolve(filename);
         }
-        
-        try (InputStream in = file.getInputStream()) {
-            Files.copy(in, filePath);
+        String relativePath;
+        usageService.beginChange(telegramId);
+        try {
+            while (true) {
+                try {
+                    if (sha256 != null) {
+                        blobStore.link(tempFile, sha256, filePath);
+                    } else {
+                        Files.move(tempFile, filePath);
+                    }
+                    break;
+                } catch (FileAlreadyExistsException e) {
+                    filename = generateUniqueFilename(dataDir, requestedName);
+                    filePath = dataDir.resolve(filename);
+                }
+            }
+            
+            relativePath = path != null && !path.isEmpty() ? path + "/" + filename : filename;
+            fileCatalog.refresh(telegramId, relativePath);
+            usageService.addData(telegramId, size, 1);
+        } finally {
+            usageService.endChange(telegramId);
         }
         
-        String relativePath = path != null && !path.isEmpty() ? path + "/" + filename : filename;
-        
         FileData fileData = new FileData();
         fileData.setId(relativePath);
         fileData.setFilename(filename);
-        fileData.setSizeBytes(fileSize);
+        fileData.setSizeBytes(size);
         fileData.setUploadedAt(Instant.now().toString());
         
         return fileData;
     }
     
+    public void validateUploadFilename(String filename) {
+        if (filename == null || filename.trim().isEmpty()) {
+            throw new IllegalStateException("Некорректное имя файла");
+        }
+        
+        // Валидация имени файла
+        if (filename.matches(".*[<>:\"/\\|?*].*")) {
+            throw new IllegalStateException("Имя файла содержит запрещенные символы: < > : \" / \\ | ? *");
+        }
+    }
+    
+    /** Папка назначения загрузки внутри data (создается при необходимости). */
+    public Path resolveUploadDir(String telegramId, String path) {
+        Path dataDir = getDataDir(telegramId);
+        if (path != null && !path.isEmpty()) {
+            dataDir = resolveUserFile(telegramId, path);
+        }
+        
+        try {
+            Files.createDirectories(dataDir);
+        } catch (IOException e) {
+            throw new RuntimeException("Не удалось создать папку", e);
+        }
+        return dataDir;
+    }
+    
+    public static IllegalStateException quotaExceeded(UserData userData, long currentUsed, long fileSize) {
+        double quotaGB = userData.getQuotaBytes() / 1024.0 / 1024.0 / 1024.0;
+        double usedMB = currentUsed / 1024.0 / 1024.0;
+        double fileMB = fileSize / 1024.0 / 1024.0;
+        return new IllegalStateException(
+            String.format("Недостаточно места! Использовано: %.2f MB, файл: %.2f MB, квота: %.2f GB", 
+                usedMB, fileMB, quotaGB)
+        );
+    }
+    
     public FileData uploadFile(String telegramId, MultipartFile file) throws IOException {
         return uploadFile(telegramId, file, null);
     }
     
     public List<FileData> listFiles(String telegramId) {
         List<FileData> files = new ArrayList<>();
-        Path dataDir = getUserDir(telegramId).resolve("data");
+        Map<String, ShareData> shareMap = sharesByFileId(telegramId);
+        Instant now = Instant.now();
+        
+        // Метаданные берем из каталога в памяти, без обхода папки data
+        for (FileData entry : fileCatalog.list(telegramId)) {
+            FileData fileData = new FileData();
+            fileData.setId(entry.getId());
+            fileData.setFilename(entry.getFilename());
+            fileData.setSizeBytes(entry.getSizeBytes());
+            fileData.setUploadedAt(entry.getUploadedAt());
+            
+            ShareData share = shareMap.get(entry.getId());
+            if (share != null && Instant.parse(share.getExpiresAt()).isAfter(now)) {
+                fileData.setShared(true);
+                fileData.setShareExpiresAt(share.getExpiresAt());
+            }
+            
+            files.add(fileData);
+        }
         
-        if (!Files.exists(dataDir)) {
-            return files;
+        return files;
+    }
+    
+    /**
+     * Метаданные одного файла: один stat по пути и поиск ссылки в индексе,
+     * без построения списка всех файлов пользователя.
+     */
+    public FileData getFileInfo(String telegramId, String fileId) throws IOException {
+        Path dataDir = getDataDir(telegramId).toAbsolutePath().normalize();
+        Path filePath = resolveUserFile(telegramId, fileId);
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(filePath, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (!attrs.isRegularFile()) {
+            return null;
         }
         
-        UserData userData = loadUserData(telegramId);
-        Map<String, ShareData> shareMap = new HashMap<>();
-        if (userData != null) {
-            for (ShareData share : userData.getShares()) {
-                if (Instant.parse(share.getExpiresAt()).isAfter(Instant.now())) {
-                    shareMap.put(share.getFileId(), share);
+        String id = dataDir.relativize(filePath).toString().replace("\\", "/");
+        FileData fileData = new FileData();
+        fileData.setId(id);
+        fileData.setFilename(filePath.getFileName().toString());
+        fileData.setSizeBytes(attrs.size());
+        fileData.setUploadedAt(Instant.ofEpochMilli(attrs.lastModifiedTime().toMillis()).toString());
+        
+        ShareData share = sharesByFileId(telegramId).get(id);
+        if (share != null && Instant.parse(share.getExpiresAt()).isAfter(Instant.now())) {
+            fileData.setShared(true);
+            fileData.setShareExpiresAt(share.getExpiresAt());
+        }
+        return fileData;
+    }
+
+    /**
+     * Страница прямых потомков папки: читается только сама папка
+     * (DirectoryStream), без обхода всего дерева и каталога пользователя.
+     * В памяти держится не больше limit + 1 записей. cursor - значение
+     * nextCursor предыдущей страницы, он действителен только для того же
+     * sort и порядка.
+     */
+    public FolderPage listFolderPage(String telegramId, String folder, String sort, boolean descending,
+                                     String cursor, int limit) throws IOException {
+        Comparator<ListedEntry> order = listingOrder(sort, descending);
+        String folderId = folder == null ? "" : folder;
+        while (folderId.endsWith("/")) {
+            folderId = folderId.substring(0, folderId.length() - 1);
+        }
+        Path dir = resolveUserFile(telegramId, folderId);
+        if (folderId.isEmpty() && !Files.exists(dir)) {
+            // папка data появляется с первой загрузкой или папкой; до этого корень пуст, как и в /list
+            FolderPage empty = new FolderPage();
+            empty.setFolder(folderId);
+            return empty;
+        }
+        ListedEntry after = cursor == null || cursor.isEmpty() ? null : decodeCursor(cursor, sort, descending);
+
+        // самые "поздние" из подходящих записей наверху кучи - их и вытесняем
+        PriorityQueue<ListedEntry> page = new PriorityQueue<>(limit + 1, order.reversed());
+        try (DirectoryStream<Path> children = Files.newDirectoryStream(dir)) {
+            for (Path child : children) {
+                BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(child, BasicFileAttributes.class);
+                } catch (NoSuchFileException e) {
+                    continue;
+                }
+                if (!attrs.isDirectory() && !attrs.isRegularFile()) {
+                    continue;
+                }
+                ListedEntry entry = new ListedEntry(attrs.isDirectory(), child.getFileName().toString(),
+                    attrs.isDirectory() ? 0 : attrs.size(), attrs.lastModifiedTime().toMillis());
+                if (after != null && order.compare(entry, after) <= 0) {
+                    continue;
+                }
+                page.add(entry);
+                if (page.size() > limit + 1) {
+                    page.poll();
                 }
             }
         }
-        
+
+        List<ListedEntry> entries = new ArrayList<>(page);
+        entries.sort(order);
+        FolderPage result = new FolderPage();
+        result.setFolder(folderId);
+        if (entries.size() > limit) {
+            entries = entries.subList(0, limit);
+            result.setNextCursor(encodeCursor(entries.get(limit - 1), sort, descending));
+        }
+
+        Map<String, ShareData> shareMap = sharesByFileId(telegramId);
+        Instant now = Instant.now();
+        for (ListedEntry entry : entries) {
+            FileData fileData = new FileData();
+            fileData.setId(folderId.isEmpty() ? entry.name : folderId + "/" + entry.name);
+            fileData.setFilename(entry.name);
+            fileData.setSizeBytes(entry.size);
+            fileData.setUploadedAt(Instant.ofEpochMilli(entry.modified).toString());
+            if (entry.folder) {
+                result.getFolders().add(fileData);
+                continue;
+            }
+            ShareData share = shareMap.get(fileData.getId());
+            if (share != null && Instant.parse(share.getExpiresAt()).isAfter(now)) {
+                fileData.setShared(true);
+                fileData.setShareExpiresAt(share.getExpiresAt());
+            }
+            result.getFiles().add(fileData);
+        }
+        return result;
+    }
+
+    /** Папки всегда перед файлами; при равных ключах порядок задает имя. */
+    private static Comparator<ListedEntry> listingOrder(String sort, boolean descending) {
+        Comparator<ListedEntry> byKey;
+        switch (sort) {
+            case "name":
+                byKey = Comparator.comparing((ListedEntry e) -> e.name, String.CASE_INSENSITIVE_ORDER);
+                break;
+            case "size":
+                byKey = Comparator.comparingLong(e -> e.size);
+                break;
+            case "date":
+                byKey = Comparator.comparingLong(e -> e.modified);
+                break;
+            default:
+                throw new IllegalStateException("Unknown sort: " + sort);
+        }
+        byKey = byKey.thenComparing(e -> e.name);
+        return Comparator.comparing((ListedEntry e) -> !e.folder)
+            .thenComparing(descending ? byKey.reversed() : byKey);
+    }
+
+    private static String encodeCursor(ListedEntry last, String sort, boolean descending) {
+        String raw = sort + "|" + (descending ? "desc" : "asc") + "|" + (last.folder ? 1 : 0)
+            + "|" + last.size + "|" + last.modified + "|" + last.name;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static ListedEntry decodeCursor(String cursor, String sort, boolean descending) {
+        String[] parts;
         try {
-            Files.walk(dataDir)
-                .filter(Files::isRegularFile)
-                .forEach(path -> {
-                    try {
-                        String relativePath = dataDir.relativize(path).toString().replace("\\", "/");
-                        FileData fileData = new FileData();
-                        fileData.setId(relativePath);
-                        fileData.setFilename(path.getFileName().toString());
-                        fileData.setSizeBytes(Files.size(path));
-                        fileData.setUploadedAt(Instant.ofEpochMilli(path.toFile().lastModified()).toString());
-                        
-                        ShareData share = shareMap.get(relativePath);
-                        if (share != null) {
-                            fileData.setShared(true);
-                            fileData.setShareExpiresAt(share.getExpiresAt());
-                        }
-                        
-                        files.add(fileData);
-                    } catch (IOException e) {
-                        // skip file
-                    }
-                });
-        } catch (IOException e) {
-            // return empty list
+            parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8)
+                .split("\\|", 6);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalStateException("Invalid cursor");
+        }
+        if (parts.length != 6 || !parts[0].equals(sort) || !parts[1].equals(descending ? "desc" : "asc")) {
+            throw new IllegalStateException("Invalid cursor");
+        }
+        try {
+            return new ListedEntry(parts[2].equals("1"), parts[5], Long.parseLong(parts[3]), Long.parseLong(parts[4]));
+        } catch (NumberFormatException e) {
+            throw new IllegalStateException("Invalid cursor");
+        }
+    }
+
+    private static class ListedEntry {
+        final boolean folder;
+        final String name;
+        final long size;
+        final long modified;
+
+        ListedEntry(boolean folder, String name, long size, long modified) {
+            this.folder = folder;
+            this.name = name;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    /** Безопасно разрешает fileId внутри папки data пользователя. */
+    public Path resolveUserFile(String telegramId, String fileId) {
+        if (fileId == null) {
+            throw new IllegalStateException("fileId is required");
         }
         
-        return files;
+        if (fileId.contains("..") || fileId.contains("\\") || fileId.startsWith("/") || fileId.startsWith("\\")) {
+            throw new IllegalStateException("Invalid fileId");
+        }
+        
+        Path dataDir = getDataDir(telegramId).toAbsolutePath().normalize();
+        Path p;
+        try {
+            p = dataDir.resolve(fileId).normalize();
+        } catch (InvalidPathException e) {
+            throw new IllegalStateException("Invalid fileId");
+        }
+        if (!p.startsWith(dataDir)) {
+            throw new IllegalStateException("Invalid fileId");
+        }
+        return p;
+    }
+
+    /**
+     * Строгий ETag по размеру и времени изменения (мс). Меняется при любой
+     * перезаписи файла и не требует чтения содержимого.
+     */
+    public String getETag(FileData fileData) {
+        return "\"" + Long.toHexString(fileData.getSizeBytes()) + "-"
+            + Long.toHexString(getLastModified(fileData)) + "\"";
+    }
+
+    public long getLastModified(FileData fileData) {
+        return Instant.parse(fileData.getUploadedAt()).toEpochMilli();
+    }
+
+    private Map<String, ShareData> sharesByFileId(String telegramId) {
+        UserData userData = userService.findUserById(telegramId);
+        if (userData == null) {
+            shareIndex.remove(telegramId);
+            return Map.of();
+        }
+        UserShares cached = shareIndex.get(telegramId);
+        if (cached == null || cached.source != userData) {
+            cached = new UserShares(userData);
+            shareIndex.put(telegramId, cached);
+        }
+        return cached.byFileId;
+    }
+    
+    private static class UserShares {
+        final UserData source;
+        final Map<String, ShareData> byFileId = new HashMap<>();
+        
+        UserShares(UserData source) {
+            this.source = source;
+            for (ShareData share : source.getShares()) {
+                ShareData existing = byFileId.get(share.getFileId());
+                // у файла может остаться истекшая ссылка рядом с новой - берем самую позднюю
+                if (existing == null || Instant.parse(share.getExpiresAt()).isAfter(Instant.parse(existing.getExpiresAt()))) {
+                    byFileId.put(share.getFileId(), share);
+                }
+            }
+        }
     }
     
     public Path getFilePath(String telegramId, String fileId) {
@@ -266,6 +584,11 @@ public class FileStorageService {
         return getUserDir(telegramId).resolve("data");
     }
 
+    /** Временные файлы незавершенных загрузок, на той же ФС, что и data. */
+    public Path getUploadsDir(String telegramId) throws IOException {
+        return Files.createDirectories(getUserDir(telegramId).resolve(".uploads"));
+    }
+
     public Path getArchivesDir(String telegramId) {
         Path dir = Paths.get(baseDir, "_archives", telegramId);
         try {
@@ -282,6 +605,18 @@ public class FileStorageService {
     }
     
     public void moveToTrash(String telegramId, String itemPath, boolean isFolder) throws IOException {
+        ReentrantLock lock = userLock(telegramId);
+        lock.lock();
+        try {
+            ShareEdits shares = new ShareEdits(telegramId);
+            moveToTrash(telegramId, itemPath, isFolder, shares);
+            shares.save();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private void moveToTrash(String telegramId, String itemPath, boolean isFolder, ShareEdits shares) throws IOException {
         Path sourcePath = getUserDir(telegramId).resolve("data").resolve(itemPath);
         if (!Files.exists(sourcePath)) {
             throw new IllegalStateException(isFolder ? "Папка не найдена" : "Файл не найден");
@@ -296,7 +631,7 @@ public class FileStorageService {
         }
         
         // Удаляем ссылки на файлы
-        removeSharesForPath(telegramId, itemPath, isFolder);
+        shares.remove(itemPath, isFolder);
         
         // Перемещаем в корзину с сохранением структуры
         Files.createDirectories(trashDir);
@@ -306,23 +641,21 @@ public class FileStorageService {
             Files.createDirectories(trashPath.getParent());
         }
         
-        Files.move(sourcePath, trashPath);
-    }
-    
-    private void removeSharesForPath(String telegramId, String itemPath, boolean isFolder) {
-        UserData userData = loadUserData(telegramId);
-        if (userData == null) return;
-        
-        boolean changed = userData.getShares().removeIf(share -> {
+        long itemBytes = isFolder ? 0 : Files.size(sourcePath);
+        usageService.beginChange(telegramId);
+        try {
+            Files.move(sourcePath, trashPath);
+            
             if (isFolder) {
-                return share.getFileId().startsWith(itemPath + "/") || share.getFileId().equals(itemPath);
+                List<FileData> removed = fileCatalog.removeFolder(telegramId, itemPath);
+                long bytes = removed.stream().mapToLong(FileData::getSizeBytes).sum();
+                usageService.moveToTrash(telegramId, bytes, removed.size());
             } else {
-                return share.getFileId().equals(itemPath);
+                fileCatalog.remove(telegramId, itemPath);
+                usageService.moveToTrash(telegramId, itemBytes, 1);
             }
-        });
-        
-        if (changed) {
-            saveUserData(telegramId, userData);
+        } finally {
+            usageService.endChange(telegramId);
         }
     }
     
@@ -361,17 +694,26 @@ public class FileStorageService {
     public void clearTrash(String telegramId) throws IOException {
         Path trashDir = getUserDir(telegramId).resolve("trash");
         if (Files.exists(trashDir)) {
-            Files.walk(trashDir)
-                .sorted((a, b) -> b.compareTo(a)) // Удаляем сначала файлы, потом папки
-                .forEach(path -> {
-                    try {
-                        if (!path.equals(trashDir)) {
-                            Files.delete(path);
+            long[] freed = new long[1];
+            usageService.beginChange(telegramId);
+            try {
+                Files.walk(trashDir)
+                    .sorted((a, b) -> b.compareTo(a)) // Удаляем сначала файлы, потом папки
+                    .forEach(path -> {
+                        try {
+                            if (!path.equals(trashDir)) {
+                                long size = Files.isRegularFile(path) ? Files.size(path) : 0;
+                                Files.delete(path);
+                                freed[0] += size;
+                            }
+                        } catch (IOException e) {
+                            // ignore
                         }
-                    } catch (IOException e) {
-                        // ignore
-                    }
-                });
+                    });
+            } finally {
+                usageService.purgeTrash(telegramId, freed[0]);
+                usageService.endChange(telegramId);
+            }
         }
     }
     
@@ -381,18 +723,32 @@ public class FileStorageService {
             throw new IllegalStateException("Элемент не найден в корзине");
         }
         
-        if (Files.isDirectory(itemPath)) {
-            Files.walk(itemPath)
-                .sorted((a, b) -> b.compareTo(a))
-                .forEach(path -> {
-                    try {
-                        Files.delete(path);
-                    } catch (IOException e) {
-                        // ignore
-                    }
-                });
-        } else {
-            Files.delete(itemPath);
+        usageService.beginChange(telegramId);
+        try {
+            if (Files.isDirectory(itemPath)) {
+                long[] freed = new long[1];
+                try {
+                    Files.walk(itemPath)
+                        .sorted((a, b) -> b.compareTo(a))
+                        .forEach(path -> {
+                            try {
+                                long size = Files.isRegularFile(path) ? Files.size(path) : 0;
+                                Files.delete(path);
+                                freed[0] += size;
+                            } catch (IOException e) {
+                                // ignore
+                            }
+                        });
+                } finally {
+                    usageService.purgeTrash(telegramId, freed[0]);
+                }
+            } else {
+                long size = Files.size(itemPath);
+                Files.delete(itemPath);
+                usageService.purgeTrash(telegramId, size);
+            }
+        } finally {
+            usageService.endChange(telegramId);
         }
     }
     
@@ -414,7 +770,15 @@ public class FileStorageService {
             throw new IllegalStateException("Файл с таким именем уже существует");
         }
         
-        Files.move(trashPath, dataPath);
+        usageService.beginChange(telegramId);
+        try {
+            Files.move(trashPath, dataPath);
+            fileCatalog.refresh(telegramId, itemId);
+            long[] restored = UsageService.walk(dataPath);
+            usageService.restoreFromTrash(telegramId, restored[0], restored[1]);
+        } finally {
+            usageService.endChange(telegramId);
+        }
         
         // Удаляем пустые папки в корзине
         cleanupEmptyTrashFolders(telegramId, itemId);
@@ -455,28 +819,7 @@ public class FileStorageService {
     }
     
     public long calculateTotalUsedBytes(String telegramId) {
-        long dataBytes = calculateUsedBytes(telegramId);
-        long trashBytes = 0;
-        
-        Path trashDir = getUserDir(telegramId).resolve("trash");
-        if (Files.exists(trashDir)) {
-            try {
-                trashBytes = Files.walk(trashDir)
-                    .filter(Files::isRegularFile)
-                    .mapToLong(path -> {
-                        try {
-                            return Files.size(path);
-                        } catch (IOException e) {
-                            return 0;
-                        }
-                    })
-                    .sum();
-            } catch (IOException e) {
-                // ignore
-            }
-        }
-        
-        return dataBytes + trashBytes;
+        return usageService.getTotalBytes(telegramId);
     }
     
     public List<String> listFolders(String telegramId) {
@@ -528,28 +871,20 @@ public class FileStorageService {
     }
     
     public long calculateUsedBytes(String telegramId) {
-        Path dataDir = getUserDir(telegramId).resolve("data");
-        if (!Files.exists(dataDir)) {
-            return 0;
-        }
-        
+        return usageService.getDataBytes(telegramId);
+    }
+    
+    public String createShare(String telegramId, String fileId) {
+        ReentrantLock lock = userLock(telegramId);
+        lock.lock();
         try {
-            return Files.walk(dataDir)
-                .filter(Files::isRegularFile)
-                .mapToLong(path -> {
-                    try {
-                        return Files.size(path);
-                    } catch (IOException e) {
-                        return 0;
-                    }
-                })
-                .sum();
-        } catch (IOException e) {
-            return 0;
+            return createShareLocked(telegramId, fileId);
+        } finally {
+            lock.unlock();
         }
     }
     
-    public String createShare(String telegramId, String fileId) {
+    private String createShareLocked(String telegramId, String fileId) {
         UserData userData = loadUserData(telegramId);
         if (userData == null) {
             throw new IllegalStateException("User not found");
@@ -583,35 +918,25 @@ public class FileStorageService {
     }
     
     public void deleteShare(String telegramId, String fileId) {
-        UserData userData = loadUserData(telegramId);
+        UserData userData = userService.updateUserData(telegramId,
+            data -> data.getShares().removeIf(share -> share.getFileId().equals(fileId)));
         if (userData == null) {
             throw new IllegalStateException("User not found");
         }
-        
-        boolean removed = userData.getShares().removeIf(share -> share.getFileId().equals(fileId));
-        if (removed) {
-            saveUserData(telegramId, userData);
-        }
     }
     
     public void cleanupExpiredShares() {
-        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(Paths.get(baseDir))) {
-            for (Path userDir : dirs) {
-                if (Files.isDirectory(userDir)) {
-                    String telegramId = userDir.getFileName().toString();
-                    UserData userData = loadUserData(telegramId);
-                    if (userData != null) {
-                        boolean changed = userData.getShares().removeIf(
-                            share -> Instant.parse(share.getExpiresAt()).isBefore(Instant.now())
-                        );
-                        if (changed) {
-                            saveUserData(telegramId, userData);
-                        }
-                    }
-                }
+        Instant now = Instant.now();
+        // Проверяем по реестру в памяти и перечитываем с диска только тех, у кого есть истекшие ссылки
+        for (UserData cached : userService.getAllUsers()) {
+            boolean hasExpired = cached.getShares().stream()
+                .anyMatch(share -> Instant.parse(share.getExpiresAt()).isBefore(now));
+            if (!hasExpired) {
+                continue;
             }
-        } catch (IOException e) {
-            // ignore
+            userService.updateUserData(cached.getId(), userData -> userData.getShares().removeIf(
+                share -> Instant.parse(share.getExpiresAt()).isBefore(now)
+            ));
         }
     }
     
@@ -637,10 +962,26 @@ public class FileStorageService {
     }
     
     public String moveFile(String telegramId, String fileId, String targetFolder) throws IOException {
+        ReentrantLock lock = userLock(telegramId);
+        lock.lock();
+        try {
+            ShareEdits shares = new ShareEdits(telegramId);
+            String renamed = moveFile(telegramId, fileId, targetFolder, shares);
+            shares.save();
+            return renamed;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private String moveFile(String telegramId, String fileId, String targetFolder, ShareEdits shares) throws IOException {
         Path sourcePath = getUserDir(telegramId).resolve("data").resolve(fileId);
         if (!Files.exists(sourcePath)) {
             throw new IllegalStateException("Файл не найден");
         }
+        if (targetFolder != null && (targetFolder.equals(fileId) || targetFolder.startsWith(fileId + "/"))) {
+            throw new IllegalStateException("Нельзя переместить папку в саму себя");
+        }
         
         String originalFileName = sourcePath.getFileName().toString();
         String fileName = originalFileName;
@@ -665,61 +1006,43 @@ public class FileStorageService {
         
         Files.move(sourcePath, targetPath);
         
-        // Обновляем ссылки
-        UserData userData = loadUserData(telegramId);
-        if (userData != null) {
-            String newFileId = targetFolder != null && !targetFolder.isEmpty() && !targetFolder.equals("/") 
-                ? targetFolder + "/" + fileName : fileName;
-            
-            for (ShareData share : userData.getShares()) {
-                if (share.getFileId().equals(fileId)) {
-                    share.setFileId(newFileId);
-                }
-            }
-            saveUserData(telegramId, userData);
+        String newFileId = targetFolder != null && !targetFolder.isEmpty() && !targetFolder.equals("/") 
+            ? targetFolder + "/" + fileName : fileName;
+        if (Files.isDirectory(targetPath)) {
+            fileCatalog.moveFolder(telegramId, fileId, newFileId);
+        } else {
+            fileCatalog.move(telegramId, fileId, newFileId);
         }
         
+        // Обновляем ссылки
+        shares.move(fileId, newFileId);
+        
         return wasRenamed ? fileName : null;
     }
 
     public FileData getFileByShare(String shareId) {
-        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(Paths.get(baseDir))) {
-            for (Path userDir : dirs) {
-                if (Files.isDirectory(userDir)) {
-                    String telegramId = userDir.getFileName().toString();
-                    UserData userData = loadUserData(telegramId);
-                    if (userData != null && userData.getShares() != null) {
-                        for (ShareData share : userData.getShares()) {
-                            if (share.getShareId().equals(shareId)) {
-                                // Проверяем, не истекла ли ссылка
-                                if (Instant.parse(share.getExpiresAt()).isBefore(Instant.now())) {
-                                    return null; // Ссылка истекла
-                                }
-                                
-                                Path filePath = getFilePath(telegramId, share.getFileId());
-                                if (Files.exists(filePath)) {
-                                    try {
-                                        FileData fileData = new FileData();
-                                        fileData.setId(share.getFileId());
-                                        fileData.setFilename(filePath.getFileName().toString());
-                                        fileData.setSizeBytes(Files.size(filePath));
-                                        fileData.setUploadedAt(Instant.ofEpochMilli(filePath.toFile().lastModified()).toString());
-                                        fileData.setTelegramId(telegramId);
-                                        return fileData;
-                                    } catch (IOException e) {
-                                        return null;
-                                    }
-                                }
-                                return null; // Файл не найден
-                            }
-                        }
-                    }
-                }
+        ShareIndexService.SharedFile sharedFile = shareIndexService.resolve(shareId);
+        if (sharedFile == null) {
+            return null; // Ссылки нет или она истекла
+        }
+        
+        String telegramId = sharedFile.getUserId();
+        Path filePath = getFilePath(telegramId, sharedFile.getFileId());
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(filePath, BasicFileAttributes.class);
+            if (!attrs.isRegularFile()) {
+                return null;
             }
+            FileData fileData = new FileData();
+            fileData.setId(sharedFile.getFileId());
+            fileData.setFilename(filePath.getFileName().toString());
+            fileData.setSizeBytes(attrs.size());
+            fileData.setUploadedAt(Instant.ofEpochMilli(attrs.lastModifiedTime().toMillis()).toString());
+            fileData.setTelegramId(telegramId);
+            return fileData;
         } catch (IOException e) {
-            // ignore
+            return null; // Файл не найден
         }
-        return null;
     }
     
     private void validateFileName(String name) {
@@ -751,6 +1074,18 @@ public class FileStorageService {
     }
     
     public void renameFile(String telegramId, String fileId, String newName) throws IOException {
+        ReentrantLock lock = userLock(telegramId);
+        lock.lock();
+        try {
+            ShareEdits shares = new ShareEdits(telegramId);
+            renameFile(telegramId, fileId, newName, shares);
+            shares.save();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private void renameFile(String telegramId, String fileId, String newName, ShareEdits shares) throws IOException {
         validateFileName(newName);
         
         Path filePath = getFilePath(telegramId, fileId);
@@ -769,22 +1104,27 @@ public class FileStorageService {
         // Переименовываем файл
         Files.move(filePath, newFilePath);
         
+        String newFileId = fileId.contains("/") ? 
+            fileId.substring(0, fileId.lastIndexOf("/") + 1) + newName : newName;
+        fileCatalog.move(telegramId, fileId, newFileId);
+        
         // Обновляем ссылки
-        UserData userData = loadUserData(telegramId);
-        if (userData != null) {
-            String newFileId = fileId.contains("/") ? 
-                fileId.substring(0, fileId.lastIndexOf("/") + 1) + newName : newName;
-            
-            for (ShareData share : userData.getShares()) {
-                if (share.getFileId().equals(fileId)) {
-                    share.setFileId(newFileId);
-                }
-            }
-            saveUserData(telegramId, userData);
-        }
+        shares.move(fileId, newFileId);
     }
     
     public void renameFolder(String telegramId, String folderPath, String newName) throws IOException {
+        ReentrantLock lock = userLock(telegramId);
+        lock.lock();
+        try {
+            ShareEdits shares = new ShareEdits(telegramId);
+            renameFolder(telegramId, folderPath, newName, shares);
+            shares.save();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private void renameFolder(String telegramId, String folderPath, String newName, ShareEdits shares) throws IOException {
         validateFileName(newName);
         
         Path dataDir = getUserDir(telegramId).resolve("data");
@@ -805,19 +1145,151 @@ public class FileStorageService {
         // Переименовываем папку
         Files.move(folderFullPath, newFolderPath);
         
+        String newFolderRelativePath = folderPath.contains("/") ? 
+            folderPath.substring(0, folderPath.lastIndexOf("/") + 1) + newName : newName;
+        fileCatalog.moveFolder(telegramId, folderPath, newFolderRelativePath);
+        
         // Обновляем ссылки на файлы в этой папке
-        UserData userData = loadUserData(telegramId);
-        if (userData != null) {
-            String newFolderRelativePath = folderPath.contains("/") ? 
-                folderPath.substring(0, folderPath.lastIndexOf("/") + 1) + newName : newName;
-            
+        shares.move(folderPath, newFolderRelativePath);
+    }
+    
+    /**
+     * Пакет операций над выбранными файлами и папками (delete, move, rename).
+     * Операции выполняются по порядку под замком пользователя, ошибка одной
+     * не останавливает остальные, а ссылки в user.xml сохраняются один раз
+     * в конце. Результат - по элементу на операцию: ok и error или newName.
+     */
+    public List<Map<String, Object>> applyBatch(String telegramId, List<Map<String, Object>> operations) {
+        if (operations == null || operations.isEmpty()) {
+            throw new IllegalStateException("Нет операций");
+        }
+        if (operations.size() > MAX_BATCH_OPERATIONS) {
+            throw new IllegalStateException("Слишком много операций за раз (максимум " + MAX_BATCH_OPERATIONS + ")");
+        }
+        List<Map<String, Object>> results = new ArrayList<>(operations.size());
+        ReentrantLock lock = userLock(telegramId);
+        lock.lock();
+        try {
+            ShareEdits shares = new ShareEdits(telegramId);
+            try {
+                for (Map<String, Object> operation : operations) {
+                    results.add(applyOperation(telegramId, operation, shares));
+                }
+            } finally {
+                shares.save();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return results;
+    }
+    
+    private Map<String, Object> applyOperation(String telegramId, Map<String, Object> operation, ShareEdits shares) {
+        String op = String.valueOf(operation.get("op"));
+        String path = operation.get("path") == null ? "" : String.valueOf(operation.get("path"));
+        boolean folder = Boolean.parseBoolean(String.valueOf(operation.get("folder")));
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("op", op);
+        result.put("path", path);
+        try {
+            if (path.isBlank()) {
+                throw new IllegalStateException("Не указан путь");
+            }
+            switch (op) {
+                case "delete" -> moveToTrash(telegramId, path, folder, shares);
+                case "move" -> {
+                    Object target = operation.get("target");
+                    String renamed = moveFile(telegramId, path, target == null ? "" : String.valueOf(target), shares);
+                    if (renamed != null) {
+                        result.put("newName", renamed);
+                    }
+                }
+                case "rename" -> {
+                    String name = String.valueOf(operation.get("name"));
+                    if (folder) {
+                        renameFolder(telegramId, path, name, shares);
+                    } else {
+                        renameFile(telegramId, path, name, shares);
+                    }
+                }
+                default -> throw new IllegalStateException("Неизвестная операция: " + op);
+            }
+            result.put("ok", true);
+        } catch (Exception e) {
+            result.put("ok", false);
+            result.put("error", e.getMessage() == null ? "Ошибка" : e.getMessage());
+        }
+        return result;
+    }
+    
+    /**
+     * Перемещения, переименования, удаление и ссылки одного пользователя идут
+     * по очереди под замком его user.xml: иначе параллельные запросы
+     * перезаписывают друг другу ссылки.
+     */
+    private ReentrantLock userLock(String telegramId) {
+        return userService.userLock(telegramId);
+    }
+    
+    /**
+     * Правки ссылок пользователя в рамках одной операции или пакета:
+     * user.xml читается, только если ссылка на затронутый путь есть в
+     * реестре, и записывается один раз в save().
+     */
+    private class ShareEdits {
+        private final String telegramId;
+        private UserData userData;
+        private boolean changed = false;
+        
+        ShareEdits(String telegramId) {
+            this.telegramId = telegramId;
+        }
+        
+        /** Путь сменился: ссылки на сам путь и на файлы внутри него переезжают. */
+        void move(String oldPath, String newPath) {
+            if (!affects(oldPath, true)) {
+                return;
+            }
             for (ShareData share : userData.getShares()) {
-                if (share.getFileId().startsWith(folderPath + "/")) {
-                    String relativePart = share.getFileId().substring(folderPath.length() + 1);
-                    share.setFileId(newFolderRelativePath + "/" + relativePart);
+                String fileId = share.getFileId();
+                if (fileId.equals(oldPath)) {
+                    share.setFileId(newPath);
+                    changed = true;
+                } else if (fileId.startsWith(oldPath + "/")) {
+                    share.setFileId(newPath + fileId.substring(oldPath.length()));
+                    changed = true;
                 }
             }
-            saveUserData(telegramId, userData);
+        }
+        
+        void remove(String path, boolean isFolder) {
+            if (!affects(path, isFolder)) {
+                return;
+            }
+            changed |= userData.getShares().removeIf(share -> matches(share.getFileId(), path, isFolder));
+        }
+        
+        void save() {
+            if (changed) {
+                saveUserData(telegramId, userData);
+                changed = false;
+            }
+        }
+        
+        /** Есть ли ссылки на путь; если есть, userData - загруженная копия для правки. */
+        private boolean affects(String path, boolean withChildren) {
+            UserData current = userData != null ? userData : userService.findUserById(telegramId);
+            if (current == null || current.getShares().stream().noneMatch(share -> matches(share.getFileId(), path, withChildren))) {
+                return false;
+            }
+            if (userData == null) {
+                userData = loadUserData(telegramId);
+            }
+            return userData != null;
+        }
+        
+        private boolean matches(String fileId, String path, boolean withChildren) {
+            return fileId.equals(path) || (withChildren && fileId.startsWith(path + "/"));
         }
     }
 }
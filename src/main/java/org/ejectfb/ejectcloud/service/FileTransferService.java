@@ -0,0 +1,129 @@
+package org.ejectfb.ejectcloud.service;
+
+import jakarta.servlet.http.HttpServletRequest;
+import org.ejectfb.ejectcloud.model.FileData;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.ResourceRegion;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Отдача файлов без копирования через heap. Если коннектор Tomcat поддерживает
+ * sendfile (NIO без TLS, например за обратным прокси), тело ответа отправляет
+ * сам Tomcat из файла в сокет после выхода из контроллера. Через TLS sendfile
+ * невозможен (шифрование идет в user space), тогда контроллер отдает
+ * FileSystemResource, который Spring читает каналом файла.
+ */
+@Service
+public class FileTransferService {
+    private static final String SENDFILE_SUPPORT_ATTR = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+
+    @Value("${ejectcloud.download.sendfile:true}")
+    private boolean sendfileEnabled;
+
+    @Value("${ejectcloud.download.sendfile-threshold:49152}")
+    private long sendfileThreshold;
+
+    /**
+     * Ответ с содержимым файла по RFC 7233: весь файл (200), один диапазон
+     * (206 + Content-Range), несколько диапазонов (206 multipart/byteranges)
+     * или 416 для невыполнимого Range. Если If-Range не совпадает с текущей
+     * версией файла, Range игнорируется и отдается весь файл.
+     *
+     * @param headers заголовки ответа (Content-Type, Content-Disposition, ETag,
+     *                Last-Modified), дополняются Accept-Ranges, Cache-Control и длиной
+     */
+    public ResponseEntity<?> serve(HttpServletRequest request, HttpHeaders requestHeaders, Path file,
+                                   FileData fileData, HttpHeaders headers) throws IOException {
+        long length = fileData.getSizeBytes();
+        headers.set(HttpHeaders.ACCEPT_RANGES, "bytes");
+        // браузер хранит копию, но каждый раз сверяет ее по ETag (дешевый 304);
+        // "private" уже выставляет Tomcat для ресурсов под security constraint
+        headers.setCacheControl(CacheControl.noCache());
+
+        boolean hasRange = requestHeaders.getFirst(HttpHeaders.RANGE) != null;
+        if (!hasRange || !ifRangeMatches(requestHeaders, headers)) {
+            headers.setContentLength(length);
+            if (trySendfile(request, file, 0, length)) {
+                return ResponseEntity.ok().headers(headers).build();
+            }
+            // Range отброшен по If-Range: InputStreamResource Spring на диапазоны не режет
+            Resource body = hasRange ? new InputStreamResource(Files.newInputStream(file)) : new FileSystemResource(file);
+            return ResponseEntity.ok().headers(headers).body(body);
+        }
+
+        // Один диапазон через sendfile; остальное (ResourceRegion, multipart/byteranges, 416)
+        // делает Spring для Resource-тела со статусом 200 и заголовком Range
+        FileSystemResource resource = new FileSystemResource(file);
+        List<ResourceRegion> regions;
+        try {
+            // та же проверка, что делает Spring; при ошибке он ответил бы 416, но с полным телом
+            regions = HttpRange.toResourceRegions(requestHeaders.getRange(), resource);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                .header(HttpHeaders.CONTENT_RANGE, "bytes */" + length)
+                .build();
+        }
+        if (regions.size() == 1) {
+            ResourceRegion region = regions.get(0);
+            long start = region.getPosition();
+            long end = start + region.getCount() - 1;
+            if (trySendfile(request, file, start, end + 1)) {
+                headers.set(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+                headers.setContentLength(region.getCount());
+                return ResponseEntity.status(HttpStatus.PARTIAL_CONTENT).headers(headers).build();
+            }
+        }
+        return ResponseEntity.ok().headers(headers).body(resource);
+    }
+
+    /**
+     * Пытается передать диапазон [start, end) файла через sendfile.
+     * При успехе контроллер должен вернуть только заголовки, без тела.
+     */
+    public boolean trySendfile(HttpServletRequest request, Path file, long start, long end) {
+        if (!sendfileEnabled || end - start < sendfileThreshold) {
+            return false;
+        }
+        if (!Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT_ATTR))) {
+            return false;
+        }
+        request.setAttribute(SENDFILE_FILENAME_ATTR, file.toAbsolutePath().toString());
+        request.setAttribute(SENDFILE_START_ATTR, start);
+        request.setAttribute(SENDFILE_END_ATTR, end);
+        return true;
+    }
+
+    /** If-Range: диапазон отдается, только если клиент держит ту же версию файла. */
+    private static boolean ifRangeMatches(HttpHeaders requestHeaders, HttpHeaders headers) {
+        String ifRange = requestHeaders.getFirst(HttpHeaders.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            // для If-Range сравнение только строгое
+            return ifRange.equals(headers.getETag()) && !ifRange.startsWith("W/");
+        }
+        try {
+            // Last-Modified передается с точностью до секунды
+            return requestHeaders.getFirstDate(HttpHeaders.IF_RANGE) / 1000 == headers.getLastModified() / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+}
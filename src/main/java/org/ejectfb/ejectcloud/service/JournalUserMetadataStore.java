@@ -0,0 +1,328 @@
+package org.ejectfb.ejectcloud.service;
+
+import org.ejectfb.ejectcloud.model.ShareData;
+import org.ejectfb.ejectcloud.model.UserData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jakarta.xml.bind.JAXBException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Данные пользователя журналом операций в user.journal. Файл начинается
+ * со снимка, дальше дописываются только изменения: профиль, добавленная
+ * или измененная ссылка, удаленная ссылка. Сохранение пользователя с
+ * тысячами ссылок дописывает десятки байт вместо перезаписи всего XML.
+ * Когда журнал вырастает вдвое больше снимка, он переписывается одним
+ * снимком. Запись - длина, CRC32 и тело; хвост, недописанный из-за сбоя,
+ * при загрузке отбрасывается.
+ */
+public class JournalUserMetadataStore implements UserMetadataStore {
+    private static final Logger log = LoggerFactory.getLogger(JournalUserMetadataStore.class);
+
+    private static final int MAGIC = 0x454A554A; // "EJUJ"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 5;
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private static final byte SNAPSHOT = 1;
+    private static final byte PROFILE = 2;
+    private static final byte PUT_SHARE = 3;
+    private static final byte REMOVE_SHARE = 4;
+
+    // маленькие журналы не сжимаем: перезапись стоила бы дороже чтения
+    private static final long MIN_COMPACT_BYTES = 64 * 1024;
+
+    private final Path baseDir;
+    private final XmlPersistenceService xmlPersistence;
+    // последнее записанное состояние: save дописывает только отличия от него
+    private final Map<String, Journal> journals = new ConcurrentHashMap<>();
+
+    public JournalUserMetadataStore(Path baseDir, XmlPersistenceService xmlPersistence) {
+        this.baseDir = baseDir;
+        this.xmlPersistence = xmlPersistence;
+    }
+
+    @Override
+    public UserData load(String userId) throws IOException {
+        Path dir = baseDir.resolve(userId);
+        Path file = dir.resolve(JOURNAL_FILE);
+        if (Files.isRegularFile(file)) {
+            Replay replay = replay(file);
+            if (replay.validBytes < replay.fileBytes) {
+                log.warn("[users] journal tail dropped userId={} bytes={}", userId, replay.fileBytes - replay.validBytes);
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                    channel.truncate(replay.validBytes);
+                    channel.force(false);
+                }
+            }
+            journals.put(userId, new Journal(UserService.copyOf(replay.userData), replay.snapshotBytes, replay.validBytes));
+            return replay.userData;
+        }
+        Path xml = dir.resolve(XML_FILE);
+        if (!Files.isRegularFile(xml)) {
+            return null;
+        }
+        // первая загрузка после переключения с XML: снимок из user.xml, сам файл оставляем копией
+        UserData userData;
+        try {
+            userData = xmlPersistence.read(xml, UserData.class);
+        } catch (JAXBException e) {
+            throw new IOException("Cannot read " + xml, e);
+        }
+        writeSnapshot(userId, dir, userData);
+        Files.move(xml, dir.resolve(XML_FILE + ".migrated"), StandardCopyOption.REPLACE_EXISTING);
+        log.info("[users] migrated userId={} from=xml to=journal shares={}", userId, userData.getShares().size());
+        return userData;
+    }
+
+    @Override
+    public void save(String userId, UserData userData) throws IOException {
+        Path dir = baseDir.resolve(userId);
+        Path file = dir.resolve(JOURNAL_FILE);
+        Journal journal = journals.get(userId);
+        if (journal == null || !Files.isRegularFile(file)) {
+            writeSnapshot(userId, dir, userData);
+            return;
+        }
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        writeChanges(records, journal.persisted, userData);
+        if (records.size() == 0) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer buffer = ByteBuffer.wrap(records.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+        journal.persisted = UserService.copyOf(userData);
+        journal.size += records.size();
+        if (journal.size > Math.max(MIN_COMPACT_BYTES, journal.snapshotBytes * 2)) {
+            writeSnapshot(userId, dir, userData);
+        }
+    }
+
+    @Override
+    public void forget(String userId) {
+        journals.remove(userId);
+    }
+
+    @Override
+    public List<String> userIds() throws IOException {
+        return UserMetadataStore.scanUserDirs(baseDir);
+    }
+
+    /** Переписывает журнал одним снимком (временный файл и атомарное переименование). */
+    private void writeSnapshot(String userId, Path dir, UserData userData) throws IOException {
+        Files.createDirectories(dir);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(bytes);
+        header.writeInt(MAGIC);
+        header.writeByte(VERSION);
+        writeRecord(bytes, snapshot(userData));
+        Path tmp = Files.createTempFile(dir, "." + JOURNAL_FILE, ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+            }
+            Files.move(tmp, dir.resolve(JOURNAL_FILE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        XmlPersistenceService.syncDirectory(dir);
+        journals.put(userId, new Journal(UserService.copyOf(userData), bytes.size(), bytes.size()));
+    }
+
+    /** Записи, переводящие before в after; ничего, если они совпадают. */
+    private static void writeChanges(OutputStream out, UserData before, UserData after) throws IOException {
+        if (!sameProfile(before, after)) {
+            writeRecord(out, profile(after));
+        }
+        Map<String, ShareData> removed = new LinkedHashMap<>();
+        for (ShareData share : before.getShares()) {
+            removed.put(share.getShareId(), share);
+        }
+        for (ShareData share : after.getShares()) {
+            ShareData previous = removed.remove(share.getShareId());
+            if (previous == null || !sameShare(previous, share)) {
+                writeRecord(out, putShare(share));
+            }
+        }
+        for (String shareId : removed.keySet()) {
+            writeRecord(out, removeShare(shareId));
+        }
+    }
+
+    private static void writeRecord(OutputStream out, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(payload.length);
+        data.writeInt((int) crc.getValue());
+        data.write(payload);
+        data.flush();
+    }
+
+    private static byte[] snapshot(UserData userData) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256 + userData.getShares().size() * 160);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(SNAPSHOT);
+        MetadataCodec.writeProfile(out, userData);
+        out.writeInt(userData.getShares().size());
+        for (ShareData share : userData.getShares()) {
+            MetadataCodec.writeShare(out, share);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] profile(UserData userData) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(PROFILE);
+        MetadataCodec.writeProfile(out, userData);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] putShare(ShareData share) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(160);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(PUT_SHARE);
+        MetadataCodec.writeShare(out, share);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] removeShare(String shareId) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(80);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(REMOVE_SHARE);
+        MetadataCodec.writeString(out, shareId);
+        return bytes.toByteArray();
+    }
+
+    private static boolean sameProfile(UserData a, UserData b) {
+        return Objects.equals(a.getId(), b.getId())
+            && Objects.equals(a.getEmail(), b.getEmail())
+            && Objects.equals(a.getDisplayName(), b.getDisplayName())
+            && Objects.equals(a.getTelegramId(), b.getTelegramId())
+            && Objects.equals(a.getPasswordHash(), b.getPasswordHash())
+            && Objects.equals(a.getSalt(), b.getSalt())
+            && a.getQuotaBytes() == b.getQuotaBytes()
+            && Objects.equals(a.getCreatedAt(), b.getCreatedAt())
+            && a.isAdmin() == b.isAdmin()
+            && a.isMustChangePassword() == b.isMustChangePassword();
+    }
+
+    private static boolean sameShare(ShareData a, ShareData b) {
+        return Objects.equals(a.getFileId(), b.getFileId())
+            && Objects.equals(a.getCreatedAt(), b.getCreatedAt())
+            && Objects.equals(a.getExpiresAt(), b.getExpiresAt());
+    }
+
+    /**
+     * Читает журнал до конца или до первой поврежденной записи. Сам файл
+     * не меняет - это делает load.
+     */
+    static Replay replay(Path file) throws IOException {
+        byte[] bytes = Files.readAllBytes(file);
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        if (bytes.length < HEADER_SIZE || in.getInt() != MAGIC || in.get() != VERSION) {
+            throw new IOException("Not a user journal: " + file);
+        }
+        UserData userData = null;
+        Map<String, ShareData> shares = new LinkedHashMap<>();
+        int valid = HEADER_SIZE;
+        int snapshotBytes = 0;
+        while (in.remaining() >= RECORD_HEADER_SIZE) {
+            int length = in.getInt();
+            int crc = in.getInt();
+            if (length <= 0 || length > in.remaining()) {
+                break;
+            }
+            CRC32 actual = new CRC32();
+            actual.update(bytes, in.position(), length);
+            if ((int) actual.getValue() != crc) {
+                break;
+            }
+            DataInputStream record = new DataInputStream(new ByteArrayInputStream(bytes, in.position(), length));
+            byte type = record.readByte();
+            if (type == SNAPSHOT) {
+                userData = new UserData();
+                MetadataCodec.readProfile(record, userData);
+                shares.clear();
+                for (int i = record.readInt(); i > 0; i--) {
+                    ShareData share = MetadataCodec.readShare(record);
+                    shares.put(share.getShareId(), share);
+                }
+                snapshotBytes = RECORD_HEADER_SIZE + length;
+            } else if (userData == null) {
+                break;
+            } else if (type == PROFILE) {
+                MetadataCodec.readProfile(record, userData);
+            } else if (type == PUT_SHARE) {
+                ShareData share = MetadataCodec.readShare(record);
+                shares.put(share.getShareId(), share);
+            } else if (type == REMOVE_SHARE) {
+                shares.remove(MetadataCodec.readString(record));
+            } else {
+                break;
+            }
+            in.position(in.position() + length);
+            valid = in.position();
+        }
+        if (userData == null) {
+            throw new IOException("User journal has no snapshot: " + file);
+        }
+        userData.setShares(new ArrayList<>(shares.values()));
+        return new Replay(userData, HEADER_SIZE + snapshotBytes, valid, bytes.length);
+    }
+
+    static class Replay {
+        final UserData userData;
+        final long snapshotBytes;
+        final long validBytes;
+        final long fileBytes;
+
+        Replay(UserData userData, long snapshotBytes, long validBytes, long fileBytes) {
+            this.userData = userData;
+            this.snapshotBytes = snapshotBytes;
+            this.validBytes = validBytes;
+            this.fileBytes = fileBytes;
+        }
+    }
+
+    private static class Journal {
+        UserData persisted;
+        final long snapshotBytes;
+        long size;
+
+        Journal(UserData persisted, long snapshotBytes, long size) {
+            this.persisted = persisted;
+            this.snapshotBytes = snapshotBytes;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package org.ejectfb.ejectcloud.service;
+
+import org.ejectfb.ejectcloud.model.FileData;
+import org.ejectfb.ejectcloud.model.ShareData;
+import org.ejectfb.ejectcloud.model.UsageData;
+import org.ejectfb.ejectcloud.model.UserData;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Двоичный формат метаданных: записи журнала пользователей и значения в
+ * базе метаданных. Значение базы начинается с номера версии формата;
+ * строки - признак null и UTF.
+ */
+final class MetadataCodec {
+    private static final byte VERSION = 1;
+
+    private MetadataCodec() {
+    }
+
+    static byte[] encodeUser(UserData userData) {
+        return encode(256 + userData.getShares().size() * 160, out -> {
+            writeProfile(out, userData);
+            out.writeInt(userData.getShares().size());
+            for (ShareData share : userData.getShares()) {
+                writeShare(out, share);
+            }
+        });
+    }
+
+    static UserData decodeUser(byte[] bytes) {
+        return decode(bytes, in -> {
+            UserData userData = new UserData();
+            readProfile(in, userData);
+            int count = in.readInt();
+            List<ShareData> shares = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                shares.add(readShare(in));
+            }
+            userData.setShares(shares);
+            return userData;
+        });
+    }
+
+    static byte[] encodeFile(FileData fileData) {
+        return encode(96, out -> {
+            writeString(out, fileData.getId());
+            writeString(out, fileData.getFilename());
+            out.writeLong(fileData.getSizeBytes());
+            writeString(out, fileData.getUploadedAt());
+        });
+    }
+
+    static FileData decodeFile(byte[] bytes) {
+        return decode(bytes, in -> {
+            FileData fileData = new FileData();
+            fileData.setId(readString(in));
+            fileData.setFilename(readString(in));
+            fileData.setSizeBytes(in.readLong());
+            fileData.setUploadedAt(readString(in));
+            return fileData;
+        });
+    }
+
+    static byte[] encodeUsage(UsageData usage) {
+        return encode(64, out -> {
+            out.writeLong(usage.getDataBytes());
+            out.writeLong(usage.getTrashBytes());
+            out.writeLong(usage.getFileCount());
+            writeString(out, usage.getReconciledAt());
+        });
+    }
+
+    static UsageData decodeUsage(byte[] bytes) {
+        return decode(bytes, in -> {
+            UsageData usage = new UsageData();
+            usage.setDataBytes(in.readLong());
+            usage.setTrashBytes(in.readLong());
+            usage.setFileCount(in.readLong());
+            usage.setReconciledAt(readString(in));
+            return usage;
+        });
+    }
+
+    static void writeProfile(DataOutputStream out, UserData userData) throws IOException {
+        writeString(out, userData.getId());
+        writeString(out, userData.getEmail());
+        writeString(out, userData.getDisplayName());
+        writeString(out, userData.getTelegramId());
+        writeString(out, userData.getPasswordHash());
+        writeString(out, userData.getSalt());
+        out.writeLong(userData.getQuotaBytes());
+        writeString(out, userData.getCreatedAt());
+        out.writeBoolean(userData.isAdmin());
+        out.writeBoolean(userData.isMustChangePassword());
+    }
+
+    static void readProfile(DataInputStream in, UserData userData) throws IOException {
+        userData.setId(readString(in));
+        userData.setEmail(readString(in));
+        userData.setDisplayName(readString(in));
+        userData.setTelegramId(readString(in));
+        userData.setPasswordHash(readString(in));
+        userData.setSalt(readString(in));
+        userData.setQuotaBytes(in.readLong());
+        userData.setCreatedAt(readString(in));
+        userData.setAdmin(in.readBoolean());
+        userData.setMustChangePassword(in.readBoolean());
+    }
+
+    static void writeShare(DataOutputStream out, ShareData share) throws IOException {
+        writeString(out, share.getShareId());
+        writeString(out, share.getFileId());
+        writeString(out, share.getCreatedAt());
+        writeString(out, share.getExpiresAt());
+    }
+
+    static ShareData readShare(DataInputStream in) throws IOException {
+        ShareData share = new ShareData();
+        share.setShareId(readString(in));
+        share.setFileId(readString(in));
+        share.setCreatedAt(readString(in));
+        share.setExpiresAt(readString(in));
+        return share;
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static byte[] encode(int sizeHint, Writer writer) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(sizeHint);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(VERSION);
+            writer.write(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static <T> T decode(byte[] bytes, Reader<T> reader) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        try {
+            if (in.readByte() != VERSION) {
+                throw new IOException("Unknown metadata format version");
+            }
+            return reader.read(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private interface Reader<T> {
+        T read(DataInputStream in) throws IOException;
+    }
+}
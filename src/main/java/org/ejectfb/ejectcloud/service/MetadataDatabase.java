@@ -0,0 +1,51 @@
+package org.ejectfb.ejectcloud.service;
+
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+
+/**
+ * Встроенная база метаданных в одном файле Data/metadata.mv.db (H2 MVStore,
+ * без отдельного сервера). Хранит упорядоченные карты "ключ - байты";
+ * содержимое значений описывает MetadataCodec. Изменения видны сразу,
+ * а на диск уходят фоновой фиксацией MVStore и явным commit().
+ */
+public class MetadataDatabase implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(MetadataDatabase.class);
+    public static final String FILE = "metadata.mv.db";
+
+    private final MVStore store;
+
+    public MetadataDatabase(Path file) {
+        this.store = new MVStore.Builder()
+            .fileName(file.toString())
+            .compress()
+            .open();
+        log.info("[metadata] opened file={} maps={}", file, store.getMapNames().size());
+    }
+
+    public MVMap<String, byte[]> map(String name) {
+        return store.openMap(name);
+    }
+
+    /** Фиксирует изменения и дожидается их записи на диск. */
+    public void commit() {
+        store.commit();
+        store.sync();
+    }
+
+    /**
+     * Фиксирует изменения и закрывает файл без "чистого" завершения MVStore:
+     * штатное close() после открытия файла, оставшегося от аварийной
+     * остановки, откатывает базу к старой версии при следующем открытии.
+     * Так каждое открытие ищет последнюю записанную версию, как после сбоя.
+     */
+    @Override
+    public void close() {
+        commit();
+        store.closeImmediately();
+    }
+}
@@ -0,0 +1,165 @@
+package org.ejectfb.ejectcloud.service;
+
+import org.ejectfb.ejectcloud.model.FileData;
+import org.h2.mvstore.Cursor;
+import org.h2.mvstore.MVMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+
+/**
+ * Каталог в базе метаданных: одна упорядоченная карта files с ключом
+ * "userId/fileId", поэтому каталог пользователя и любая его папка - это
+ * диапазон ключей, а правка файла меняет одну строку, а не весь каталог.
+ * Карта catalogs отмечает пользователей, чей каталог уже построен.
+ * files.xml импортируется при первом обращении и переименовывается в
+ * files.xml.migrated.
+ */
+public class MvStoreCatalogStore implements CatalogStore {
+    private static final Logger log = LoggerFactory.getLogger(MvStoreCatalogStore.class);
+    private static final byte[] PRESENT = new byte[0];
+
+    private final Path baseDir;
+    private final MetadataDatabase database;
+    private final XmlPersistenceService xmlPersistence;
+    private final MVMap<String, byte[]> files;
+    private final MVMap<String, byte[]> catalogs;
+
+    public MvStoreCatalogStore(Path baseDir, MetadataDatabase database, XmlPersistenceService xmlPersistence) {
+        this.baseDir = baseDir;
+        this.database = database;
+        this.xmlPersistence = xmlPersistence;
+        this.files = database.map("files");
+        this.catalogs = database.map("catalogs");
+    }
+
+    @Override
+    public boolean contains(String userId) {
+        return catalogs.containsKey(userId) || importFile(userId);
+    }
+
+    @Override
+    public List<FileData> list(String userId) {
+        // '0' следует за '/': все ключи "userId/..." лежат в ["userId/", "userId0")
+        return range(userId + "/", userId + "0", false);
+    }
+
+    @Override
+    public List<FileData> listRange(String userId, String from, String to) {
+        return range(key(userId, from), key(userId, to), false);
+    }
+
+    @Override
+    public FileData get(String userId, String fileId) {
+        byte[] bytes = files.get(key(userId, fileId));
+        return bytes == null ? null : MetadataCodec.decodeFile(bytes);
+    }
+
+    @Override
+    public void put(String userId, FileData fileData) {
+        files.put(key(userId, fileData.getId()), MetadataCodec.encodeFile(fileData));
+        catalogs.putIfAbsent(userId, PRESENT);
+    }
+
+    @Override
+    public FileData remove(String userId, String fileId) {
+        byte[] bytes = files.remove(key(userId, fileId));
+        return bytes == null ? null : MetadataCodec.decodeFile(bytes);
+    }
+
+    @Override
+    public List<FileData> removeRange(String userId, String from, String to) {
+        return range(key(userId, from), key(userId, to), true);
+    }
+
+    /** Пишет только отличия от сохраненного каталога. */
+    @Override
+    public void replace(String userId, Map<String, FileData> entries) {
+        List<String> stale = new ArrayList<>();
+        String to = userId + "0";
+        Cursor<String, byte[]> cursor = files.cursor(userId + "/");
+        while (cursor.hasNext()) {
+            String key = cursor.next();
+            if (key.compareTo(to) >= 0) {
+                break;
+            }
+            if (!entries.containsKey(key.substring(userId.length() + 1))) {
+                stale.add(key);
+            }
+        }
+        for (String key : stale) {
+            files.remove(key);
+        }
+        for (FileData fileData : entries.values()) {
+            byte[] bytes = MetadataCodec.encodeFile(fileData);
+            String key = key(userId, fileData.getId());
+            if (!Arrays.equals(files.get(key), bytes)) {
+                files.put(key, bytes);
+            }
+        }
+        catalogs.put(userId, PRESENT);
+    }
+
+    @Override
+    public void forget(String userId) {
+        range(userId + "/", userId + "0", true);
+        catalogs.remove(userId);
+        database.commit();
+    }
+
+    @Override
+    public void flush() {
+        database.commit();
+    }
+
+    private List<FileData> range(String from, String to, boolean remove) {
+        List<FileData> result = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        Cursor<String, byte[]> cursor = files.cursor(from);
+        while (cursor.hasNext()) {
+            String key = cursor.next();
+            if (key.compareTo(to) >= 0) {
+                break;
+            }
+            result.add(MetadataCodec.decodeFile(cursor.getValue()));
+            keys.add(key);
+        }
+        if (remove) {
+            for (String key : keys) {
+                files.remove(key);
+            }
+        }
+        return result;
+    }
+
+    private boolean importFile(String userId) {
+        Path catalogFile = baseDir.resolve(userId).resolve(XmlCatalogStore.CATALOG_FILE);
+        NavigableMap<String, FileData> catalog = XmlCatalogStore.read(xmlPersistence, catalogFile, userId);
+        if (catalog == null) {
+            return false;
+        }
+        replace(userId, catalog);
+        database.commit();
+        try {
+            Files.move(catalogFile, catalogFile.resolveSibling(XmlCatalogStore.CATALOG_FILE + ".migrated"),
+                StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            log.warn("[catalog] rename failed userId={} msg={}", userId, e.getMessage());
+        }
+        log.info("[catalog] imported userId={} files={}", userId, catalog.size());
+        return true;
+    }
+
+    private static String key(String userId, String fileId) {
+        return userId + "/" + fileId;
+    }
+}
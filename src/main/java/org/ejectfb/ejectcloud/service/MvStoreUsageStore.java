@@ -0,0 +1,61 @@
+package org.ejectfb.ejectcloud.service;
+
+import org.ejectfb.ejectcloud.model.UsageData;
+import org.h2.mvstore.MVMap;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Счетчики в карте usage базы метаданных. usage.xml импортируется при
+ * первом обращении к пользователю и переименовывается в usage.xml.migrated.
+ */
+public class MvStoreUsageStore implements UsageStore {
+    private final Path baseDir;
+    private final MetadataDatabase database;
+    private final XmlPersistenceService xmlPersistence;
+    private final MVMap<String, byte[]> usage;
+
+    public MvStoreUsageStore(Path baseDir, MetadataDatabase database, XmlPersistenceService xmlPersistence) {
+        this.baseDir = baseDir;
+        this.database = database;
+        this.xmlPersistence = xmlPersistence;
+        this.usage = database.map("usage");
+    }
+
+    @Override
+    public UsageData load(String userId) throws IOException {
+        byte[] bytes = usage.get(userId);
+        if (bytes != null) {
+            return MetadataCodec.decodeUsage(bytes);
+        }
+        Path usageFile = baseDir.resolve(userId).resolve(XmlUsageStore.USAGE_FILE);
+        UsageData imported = XmlUsageStore.read(xmlPersistence, usageFile);
+        if (imported != null) {
+            usage.put(userId, MetadataCodec.encodeUsage(imported));
+            database.commit();
+            Files.move(usageFile, usageFile.resolveSibling(XmlUsageStore.USAGE_FILE + ".migrated"),
+                StandardCopyOption.REPLACE_EXISTING);
+        }
+        return imported;
+    }
+
+    @Override
+    public void save(String userId, UsageData usageData) {
+        usage.put(userId, MetadataCodec.encodeUsage(usageData));
+    }
+
+    @Override
+    public void forget(String userId) {
+        if (usage.remove(userId) != null) {
+            database.commit();
+        }
+    }
+
+    @Override
+    public void flush() {
+        database.commit();
+    }
+}
@@ -0,0 +1,106 @@
+package org.ejectfb.ejectcloud.service;
+
+import org.ejectfb.ejectcloud.model.UserData;
+import org.h2.mvstore.MVMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jakarta.xml.bind.JAXBException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Данные пользователей в базе метаданных: карта users (id - профиль со
+ * ссылками). Папка Data/&lt;user&gt; остается только для файлов. При первом
+ * открытии базы пользователи импортируются из user.xml и user.journal,
+ * исходные файлы переименовываются в *.migrated.
+ */
+public class MvStoreUserMetadataStore implements UserMetadataStore {
+    private static final Logger log = LoggerFactory.getLogger(MvStoreUserMetadataStore.class);
+    private static final String IMPORTED = "users.imported";
+
+    private final Path baseDir;
+    private final MetadataDatabase database;
+    private final MVMap<String, byte[]> users;
+
+    public MvStoreUserMetadataStore(Path baseDir, MetadataDatabase database, XmlPersistenceService xmlPersistence)
+            throws IOException {
+        this.baseDir = baseDir;
+        this.database = database;
+        this.users = database.map("users");
+        MVMap<String, byte[]> meta = database.map("meta");
+        if (!meta.containsKey(IMPORTED)) {
+            importFiles(xmlPersistence);
+            meta.put(IMPORTED, Instant.now().toString().getBytes(StandardCharsets.UTF_8));
+            database.commit();
+        }
+    }
+
+    @Override
+    public UserData load(String userId) {
+        byte[] bytes = users.get(userId);
+        return bytes == null ? null : MetadataCodec.decodeUser(bytes);
+    }
+
+    @Override
+    public void save(String userId, UserData userData) {
+        users.put(userId, MetadataCodec.encodeUser(userData));
+        database.commit();
+    }
+
+    @Override
+    public void forget(String userId) {
+        if (users.remove(userId) != null) {
+            database.commit();
+        }
+    }
+
+    @Override
+    public List<String> userIds() {
+        return new ArrayList<>(users.keySet());
+    }
+
+    /**
+     * Переносит пользователей файловых форматов. Исходники переименовываются
+     * только после фиксации базы: прерванный импорт повторится при следующем
+     * старте для оставшихся папок.
+     */
+    private void importFiles(XmlPersistenceService xmlPersistence) throws IOException {
+        Map<String, Path> sources = new LinkedHashMap<>();
+        for (String userId : UserMetadataStore.scanUserDirs(baseDir)) {
+            Path dir = baseDir.resolve(userId);
+            Path xml = dir.resolve(XML_FILE);
+            try {
+                UserData userData;
+                if (Files.isRegularFile(xml)) {
+                    userData = xmlPersistence.read(xml, UserData.class);
+                    sources.put(userId, xml);
+                } else {
+                    Path journal = dir.resolve(JOURNAL_FILE);
+                    userData = JournalUserMetadataStore.replay(journal).userData;
+                    sources.put(userId, journal);
+                }
+                users.put(userId, MetadataCodec.encodeUser(userData));
+            } catch (IOException | JAXBException | RuntimeException e) {
+                // поврежденного пользователя не переносим: его файлы остаются как есть
+                log.warn("[users] import failed userId={} msg={}", userId, e.getMessage());
+            }
+        }
+        if (sources.isEmpty()) {
+            return;
+        }
+        database.commit();
+        for (Path source : sources.values()) {
+            Files.move(source, source.resolveSibling(source.getFileName() + ".migrated"), StandardCopyOption.REPLACE_EXISTING);
+        }
+        log.info("[users] imported count={} from=files to=mvstore", sources.size());
+    }
+}
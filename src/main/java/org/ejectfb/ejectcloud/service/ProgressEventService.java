@@ -0,0 +1,206 @@
+package org.ejectfb.ejectcloud.service;
+
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.ContextClosedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Server-Sent Events с прогрессом задач (архивы, загрузки по частям).
+ * Браузер держит одно соединение /api/files/events на все вкладки; сервисы только помечают
+ * задачу как измененную, а раз в interval-ms рассылка берет свежий снимок
+ * каждой помеченной задачи - сколько бы раз задача ни менялась между
+ * тиками, клиент получит одно событие. Пока у пользователя нет открытых
+ * соединений, пометки не копятся.
+ */
+@Service
+public class ProgressEventService {
+    private static final Logger log = LoggerFactory.getLogger(ProgressEventService.class);
+    // комментарий-пинг держит соединение через прокси и выявляет закрытые вкладки
+    private static final long HEARTBEAT_MS = 25_000;
+
+    @Value("${ejectcloud.events.interval-ms:500}")
+    private long intervalMs;
+
+    @Value("${ejectcloud.events.timeout-ms:1800000}")
+    private long timeoutMs;
+
+    @Value("${ejectcloud.events.max-per-user:4}")
+    private int maxPerUser;
+
+    private final Map<String, List<Subscriber>> subscribers = new ConcurrentHashMap<>();
+    // userId -> (тип:id -> снимок на момент рассылки); последняя пометка вытесняет предыдущие
+    private final Map<String, Map<String, Pending>> dirty = new ConcurrentHashMap<>();
+    private ScheduledExecutorService pusher;
+
+    @PostConstruct
+    public void start() {
+        pusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "progress-events");
+            t.setDaemon(true);
+            return t;
+        });
+        pusher.scheduleWithFixedDelay(this::flush, intervalMs, Math.max(50, intervalMs), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Закрывает потоки до остановки веб-сервера: иначе открытые вкладки
+     * держат асинхронные запросы, и Tomcat ждет их при остановке.
+     */
+    @EventListener(ContextClosedEvent.class)
+    public void stop() {
+        pusher.shutdownNow();
+        for (List<Subscriber> list : subscribers.values()) {
+            for (Subscriber s : list) {
+                s.emitter.complete();
+            }
+        }
+    }
+
+    /**
+     * Новое соединение пользователя. Сверх max-per-user закрывается самое
+     * старое - браузер переподключится, если вкладка еще открыта.
+     */
+    public SseEmitter subscribe(String userId) {
+        SseEmitter emitter = new SseEmitter(timeoutMs);
+        Subscriber subscriber = new Subscriber(emitter);
+        List<Subscriber> list = subscribers.computeIfAbsent(userId, k -> new CopyOnWriteArrayList<>());
+        list.add(subscriber);
+        while (list.size() > Math.max(1, maxPerUser)) {
+            Subscriber oldest = list.remove(0);
+            oldest.emitter.complete();
+        }
+        Runnable remove = () -> unsubscribe(userId, subscriber);
+        emitter.onCompletion(remove);
+        emitter.onTimeout(remove);
+        emitter.onError(e -> remove.run());
+        try {
+            // поток открывается сразу, не дожидаясь первого события
+            emitter.send(SseEmitter.event().comment("connected").reconnectTime(3000));
+        } catch (IOException e) {
+            unsubscribe(userId, subscriber);
+        }
+        log.debug("[events] subscribed userId={} connections={}", userId, list.size());
+        return emitter;
+    }
+
+    public boolean hasSubscribers(String userId) {
+        List<Subscriber> list = subscribers.get(userId);
+        return list != null && !list.isEmpty();
+    }
+
+    /**
+     * Помечает задачу измененной. snapshot вызывается на следующем тике в
+     * потоке рассылки и должен быть дешевым и потокобезопасным.
+     *
+     * @param type имя события (archive, upload)
+     */
+    public void publish(String userId, String type, String id, Supplier<Map<String, Object>> snapshot) {
+        if (!hasSubscribers(userId)) {
+            return;
+        }
+        dirty.computeIfAbsent(userId, k -> new ConcurrentHashMap<>())
+            .put(type + ":" + id, new Pending(type, snapshot));
+    }
+
+    private void flush() {
+        try {
+            long now = System.currentTimeMillis();
+            for (Map.Entry<String, List<Subscriber>> entry : subscribers.entrySet()) {
+                String userId = entry.getKey();
+                List<Subscriber> list = entry.getValue();
+                List<Pending> batch = drain(userId);
+                for (Subscriber s : list) {
+                    if (batch.isEmpty() && now - s.lastSentMs < HEARTBEAT_MS) {
+                        continue;
+                    }
+                    try {
+                        if (batch.isEmpty()) {
+                            s.emitter.send(SseEmitter.event().comment("ping"));
+                        }
+                        for (Pending p : batch) {
+                            if (p.data != null) {
+                                s.emitter.send(SseEmitter.event().name(p.type).data(p.data, MediaType.APPLICATION_JSON));
+                            }
+                        }
+                        s.lastSentMs = now;
+                    } catch (IOException | IllegalStateException e) {
+                        // вкладка закрыта: соединение убирается, остальным рассылка продолжается;
+                        // запрос завершит сам контейнер по ошибке записи
+                        unsubscribe(userId, s);
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            log.warn("[events] flush failed msg={}", e.getMessage());
+        }
+    }
+
+    private List<Pending> drain(String userId) {
+        Map<String, Pending> pending = dirty.get(userId);
+        List<Pending> batch = new ArrayList<>();
+        if (pending == null || pending.isEmpty()) {
+            return batch;
+        }
+        Iterator<Pending> it = pending.values().iterator();
+        while (it.hasNext()) {
+            Pending p = it.next();
+            it.remove();
+            try {
+                p.data = new LinkedHashMap<>(p.snapshot.get());
+            } catch (RuntimeException e) {
+                log.debug("[events] snapshot failed type={} msg={}", p.type, e.getMessage());
+            }
+            batch.add(p);
+        }
+        return batch;
+    }
+
+    private void unsubscribe(String userId, Subscriber subscriber) {
+        subscribers.computeIfPresent(userId, (k, list) -> {
+            list.remove(subscriber);
+            return list.isEmpty() ? null : list;
+        });
+        if (!subscribers.containsKey(userId)) {
+            dirty.remove(userId);
+        }
+    }
+
+    private static class Subscriber {
+        final SseEmitter emitter;
+        volatile long lastSentMs = System.currentTimeMillis();
+
+        Subscriber(SseEmitter emitter) {
+            this.emitter = emitter;
+        }
+    }
+
+    private static class Pending {
+        final String type;
+        final Supplier<Map<String, Object>> snapshot;
+        Map<String, Object> data;
+
+        Pending(String type, Supplier<Map<String, Object>> snapshot) {
+            this.type = type;
+            this.snapshot = snapshot;
+        }
+    }
+}
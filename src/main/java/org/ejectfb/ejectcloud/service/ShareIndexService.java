@@ -0,0 +1,83 @@
+package org.ejectfb.ejectcloud.service;
+
+import org.ejectfb.ejectcloud.model.ShareData;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Глобальный индекс публичных ссылок shareId -> (пользователь, файл, срок).
+ * Обновляется UserService при каждом сохранении/удалении пользователя, поэтому
+ * /share/{shareId} разрешается без обхода всех user.xml.
+ */
+@Service
+public class ShareIndexService {
+
+    private final Map<String, SharedFile> byShareId = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> shareIdsByUser = new ConcurrentHashMap<>();
+
+    /** Возвращает действующую ссылку или null, если ее нет или срок истек. */
+    public SharedFile resolve(String shareId) {
+        if (shareId == null) {
+            return null;
+        }
+        SharedFile sharedFile = byShareId.get(shareId);
+        if (sharedFile == null || sharedFile.getExpiresAt().isBefore(Instant.now())) {
+            return null;
+        }
+        return sharedFile;
+    }
+
+    /** Заменяет все ссылки пользователя текущим списком. */
+    public synchronized void reindexUser(String userId, List<ShareData> shares) {
+        Set<String> current = new HashSet<>();
+        if (shares != null) {
+            for (ShareData share : shares) {
+                current.add(share.getShareId());
+                byShareId.put(share.getShareId(),
+                    new SharedFile(userId, share.getFileId(), Instant.parse(share.getExpiresAt())));
+            }
+        }
+        Set<String> previous = shareIdsByUser.put(userId, current);
+        if (previous != null) {
+            for (String shareId : previous) {
+                if (!current.contains(shareId)) {
+                    SharedFile sharedFile = byShareId.get(shareId);
+                    if (sharedFile != null && sharedFile.getUserId().equals(userId)) {
+                        byShareId.remove(shareId);
+                    }
+                }
+            }
+        }
+    }
+
+    public synchronized void removeUser(String userId) {
+        Set<String> previous = shareIdsByUser.remove(userId);
+        if (previous != null) {
+            for (String shareId : previous) {
+                byShareId.computeIfPresent(shareId, (id, sharedFile) -> sharedFile.getUserId().equals(userId) ? null : sharedFile);
+            }
+        }
+    }
+
+    public static class SharedFile {
+        private final String userId;
+        private final String fileId;
+        private final Instant expiresAt;
+
+        SharedFile(String userId, String fileId, Instant expiresAt) {
+            this.userId = userId;
+            this.fileId = fileId;
+            this.expiresAt = expiresAt;
+        }
+
+        public String getUserId() { return userId; }
+        public String getFileId() { return fileId; }
+        public Instant getExpiresAt() { return expiresAt; }
+    }
+}
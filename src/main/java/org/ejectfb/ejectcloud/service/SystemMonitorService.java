@@ -5,9 +5,6 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
-import jakarta.xml.bind.JAXBContext;
-import jakarta.xml.bind.Marshaller;
-import jakarta.xml.bind.Unmarshaller;
 import java.io.File;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryMXBean;
@@ -28,6 +25,11 @@ public class SystemMonitorService {
     private final String statsFile = "stats.xml";
     private final OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
     private final MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+    private final XmlPersistenceService xmlPersistence;
+    
+    public SystemMonitorService(XmlPersistenceService xmlPersistence) {
+        this.xmlPersistence = xmlPersistence;
+    }
     
     @Scheduled(fixedRate = 5000) // каждые 5 секунд
     public void collectStats() {
@@ -77,9 +79,7 @@ public class SystemMonitorService {
                 return new SystemStats();
             }
             
-            JAXBContext context = JAXBContext.newInstance(SystemStats.class);
-            Unmarshaller unmarshaller = context.createUnmarshaller();
-            return (SystemStats) unmarshaller.unmarshal(file);
+            return xmlPersistence.read(file.toPath(), SystemStats.class);
         } catch (Exception e) {
             return new SystemStats();
         }
@@ -87,10 +87,7 @@ public class SystemMonitorService {
     
     private void saveStats(SystemStats stats) {
         try {
-            JAXBContext context = JAXBContext.newInstance(SystemStats.class);
-            Marshaller marshaller = context.createMarshaller();
-            marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
-            marshaller.marshal(stats, new File(statsFile));
+            xmlPersistence.write(new File(statsFile).toPath(), stats);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -0,0 +1,348 @@
+package org.ejectfb.ejectcloud.service;
+
+import org.ejectfb.ejectcloud.model.FileData;
+import org.ejectfb.ejectcloud.model.UploadSession;
+import org.ejectfb.ejectcloud.model.UserData;
+import org.ejectfb.ejectcloud.util.TokenGenerator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import jakarta.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Возобновляемые загрузки по частям. Сессия резервирует место в квоте,
+ * создает файл полного размера в Data/&lt;user&gt;/.uploads и принимает части
+ * по смещению в любом порядке и параллельно (позиционная запись FileChannel).
+ * Принятые части сохраняются в &lt;id&gt;.xml рядом с файлом, поэтому после
+ * обрыва связи или рестарта клиент спрашивает, что уже получено, и досылает
+ * остальное. Брошенные сессии удаляет CleanupTask.
+ */
+@Service
+public class UploadSessionService {
+    private static final Logger log = LoggerFactory.getLogger(UploadSessionService.class);
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    @Value("${ejectcloud.data-dir:./Data}")
+    private String baseDir;
+
+    @Value("${ejectcloud.upload.chunk-size:8388608}")
+    private long chunkSize;
+
+    @Value("${ejectcloud.upload.session-hours:24}")
+    private long sessionHours;
+
+    private final FileStorageService storageService;
+    private final UsageService usageService;
+    private final XmlPersistenceService xmlPersistence;
+    private final BlobStoreService blobStore;
+    private final ProgressEventService events;
+
+    private final Map<String, UploadSession> sessions = new ConcurrentHashMap<>();
+
+    public UploadSessionService(FileStorageService storageService, UsageService usageService,
+                                XmlPersistenceService xmlPersistence, BlobStoreService blobStore,
+                                ProgressEventService events) {
+        this.storageService = storageService;
+        this.usageService = usageService;
+        this.xmlPersistence = xmlPersistence;
+        this.blobStore = blobStore;
+        this.events = events;
+    }
+
+    /** Поднимает сохраненные сессии и заново резервирует под них место. */
+    @PostConstruct
+    public void loadSessions() {
+        Path root = Paths.get(baseDir);
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+        try (DirectoryStream<Path> users = Files.newDirectoryStream(root)) {
+            for (Path userDir : users) {
+                Path uploadsDir = userDir.resolve(".uploads");
+                if (!Files.isDirectory(uploadsDir)) {
+                    continue;
+                }
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(uploadsDir, "*.xml")) {
+                    for (Path sessionFile : files) {
+                        try {
+                            UploadSession session = xmlPersistence.read(sessionFile, UploadSession.class);
+                            sessions.put(session.getId(), session);
+                            usageService.tryReserve(session.getUserId(), session.getSizeBytes(), Long.MAX_VALUE);
+                        } catch (Exception e) {
+                            log.warn("[upload] session load failed file={} msg={}", sessionFile, e.getMessage());
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.warn("[upload] session scan failed msg={}", e.getMessage());
+        }
+        if (!sessions.isEmpty()) {
+            log.info("[upload] restored sessions count={}", sessions.size());
+        }
+    }
+
+    public UploadSession create(String userId, String filename, String path, long sizeBytes) throws IOException {
+        if (sizeBytes < 0) {
+            throw new IllegalStateException("Некорректный размер файла");
+        }
+        storageService.validateUploadFilename(filename);
+        storageService.resolveUploadDir(userId, path);
+
+        UserData userData = storageService.getUserService().findUserById(userId);
+        if (userData == null) {
+            throw new IllegalStateException("Пользователь не найден");
+        }
+        if (!usageService.tryReserve(userId, sizeBytes, userData.getQuotaBytes())) {
+            long used = storageService.calculateTotalUsedBytes(userId) + usageService.getReservedBytes(userId);
+            throw FileStorageService.quotaExceeded(userData, used, sizeBytes);
+        }
+
+        UploadSession session = new UploadSession();
+        session.setId(TokenGenerator.generate(18));
+        session.setUserId(userId);
+        session.setFilename(filename);
+        session.setPath(path);
+        session.setSizeBytes(sizeBytes);
+        session.setChunkSize(chunkSize);
+        Instant now = Instant.now();
+        session.setCreatedAt(now.toString());
+        session.setExpiresAt(now.plus(Duration.ofHours(sessionHours)).toString());
+        try {
+            storageService.getUploadsDir(userId);
+            // файл сразу полного размера: части пишутся на свои места в любом порядке
+            try (RandomAccessFile file = new RandomAccessFile(dataFile(session).toFile(), "rw")) {
+                file.setLength(sizeBytes);
+            }
+            save(session);
+        } catch (IOException | RuntimeException e) {
+            usageService.release(userId, sizeBytes);
+            Files.deleteIfExists(dataFile(session));
+            throw e;
+        }
+        sessions.put(session.getId(), session);
+        log.info("[upload] session created userId={} id={} file={} bytes={}", userId, session.getId(), filename, sizeBytes);
+        return session;
+    }
+
+    public UploadSession get(String userId, String sessionId) {
+        UploadSession session = sessions.get(sessionId);
+        if (session == null || !session.getUserId().equals(userId)) {
+            throw new IllegalStateException("Сессия загрузки не найдена");
+        }
+        return session;
+    }
+
+    /**
+     * Принимает часть по смещению. Смещение должно быть началом части
+     * (кратно chunkSize), длина - ровно размер части; часть считается
+     * полученной, только если пришла целиком.
+     */
+    public UploadSession writeChunk(String userId, String sessionId, long offset, InputStream in) throws IOException {
+        UploadSession session = get(userId, sessionId);
+        if (offset < 0 || offset >= session.getSizeBytes() || offset % session.getChunkSize() != 0) {
+            throw new IllegalStateException("Некорректное смещение части");
+        }
+        int index = (int) (offset / session.getChunkSize());
+        long expected = Math.min(session.getChunkSize(), session.getSizeBytes() - offset);
+
+        long written = 0;
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(dataFile(session), StandardOpenOption.WRITE)) {
+            int read;
+            while ((read = in.read(buffer.array())) != -1) {
+                if (written + read > expected) {
+                    throw new IllegalStateException("Часть больше ожидаемого размера");
+                }
+                buffer.limit(read).position(0);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, offset + written + buffer.position());
+                }
+                written += read;
+                buffer.clear();
+            }
+        }
+        if (written != expected) {
+            throw new IllegalStateException("Часть получена не полностью: " + written + " из " + expected);
+        }
+
+        synchronized (session) {
+            if (!session.getReceivedChunks().contains(index)) {
+                session.getReceivedChunks().add(index);
+            }
+            session.setExpiresAt(Instant.now().plus(Duration.ofHours(sessionHours)).toString());
+            save(session);
+        }
+        publish(session, "running");
+        return session;
+    }
+
+    /** Полученные диапазоны байтов [start, end] по возрастанию. */
+    public List<long[]> receivedRanges(UploadSession session) {
+        List<long[]> ranges = new ArrayList<>();
+        synchronized (session) {
+            for (int index : new TreeSet<>(session.getReceivedChunks())) {
+                long start = index * session.getChunkSize();
+                long end = Math.min(start + session.getChunkSize(), session.getSizeBytes()) - 1;
+                long[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+                if (last != null && last[1] + 1 == start) {
+                    last[1] = end;
+                } else {
+                    ranges.add(new long[]{start, end});
+                }
+            }
+        }
+        return ranges;
+    }
+
+    public long receivedBytes(UploadSession session) {
+        long total = 0;
+        for (long[] range : receivedRanges(session)) {
+            total += range[1] - range[0] + 1;
+        }
+        return total;
+    }
+
+    /**
+     * Все части получены: файл переносится в папку пользователя. Если перенос
+     * не удался, сессия, ее файл и резерв места остаются, и клиент может
+     * повторить завершение.
+     */
+    public FileData complete(String userId, String sessionId) throws IOException {
+        UploadSession session = get(userId, sessionId);
+        synchronized (session) {
+            if (session.getReceivedChunks().size() < session.getChunkCount()) {
+                throw new IllegalStateException("Получены не все части: "
+                    + session.getReceivedChunks().size() + " из " + session.getChunkCount());
+            }
+            if (sessions.remove(sessionId) == null) {
+                throw new IllegalStateException("Сессия загрузки не найдена");
+            }
+        }
+        FileData file;
+        try {
+            String sha256 = blobStore.isEnabled() ? blobStore.digest(dataFile(session)) : null;
+            file = storageService.commitUpload(userId, dataFile(session), session.getFilename(),
+                session.getPath(), session.getSizeBytes(), sha256);
+        } catch (IOException | RuntimeException e) {
+            if (Files.exists(dataFile(session))) {
+                sessions.put(sessionId, session);
+                publish(session, "error");
+                log.warn("[upload] session complete failed userId={} id={} msg={}, kept for retry",
+                    userId, sessionId, e.getMessage());
+            } else {
+                // файл уже на месте, не удался только учет - сессия больше не нужна
+                finish(session);
+            }
+            throw e;
+        }
+        publish(session, "done");
+        finish(session);
+        return file;
+    }
+
+    private void finish(UploadSession session) throws IOException {
+        usageService.release(session.getUserId(), session.getSizeBytes());
+        Files.deleteIfExists(sessionFile(session));
+        Files.deleteIfExists(dataFile(session));
+        log.info("[upload] session completed userId={} id={} bytes={}", session.getUserId(), session.getId(),
+            session.getSizeBytes());
+    }
+
+    public void cancel(String userId, String sessionId) {
+        discard(get(userId, sessionId));
+    }
+
+    /** Удаляет сессии, в которые давно не приходили части. */
+    public void expireSessions() {
+        Instant now = Instant.now();
+        for (UploadSession session : new ArrayList<>(sessions.values())) {
+            if (Instant.parse(session.getExpiresAt()).isBefore(now)) {
+                log.info("[upload] session expired userId={} id={}", session.getUserId(), session.getId());
+                discard(session);
+            }
+        }
+        sweepStaleTempFiles(now.minus(Duration.ofHours(sessionHours)));
+    }
+
+    /** Остатки потоковых загрузок (upload-*.part), оборванных рестартом. */
+    private void sweepStaleTempFiles(Instant cutoff) {
+        try (DirectoryStream<Path> users = Files.newDirectoryStream(Paths.get(baseDir))) {
+            for (Path userDir : users) {
+                Path uploadsDir = userDir.resolve(".uploads");
+                if (!Files.isDirectory(uploadsDir)) {
+                    continue;
+                }
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(uploadsDir, "upload-*.part")) {
+                    for (Path file : files) {
+                        if (Files.getLastModifiedTime(file).toInstant().isBefore(cutoff)) {
+                            Files.deleteIfExists(file);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.warn("[upload] temp sweep failed msg={}", e.getMessage());
+        }
+    }
+
+    private void discard(UploadSession session) {
+        if (sessions.remove(session.getId()) == null) {
+            return;
+        }
+        usageService.release(session.getUserId(), session.getSizeBytes());
+        publish(session, "cancelled");
+        try {
+            Files.deleteIfExists(sessionFile(session));
+            Files.deleteIfExists(dataFile(session));
+        } catch (IOException e) {
+            log.warn("[upload] session cleanup failed id={} msg={}", session.getId(), e.getMessage());
+        }
+    }
+
+    /** Прогресс сессии для вкладок пользователя (в том числе не той, что загружает). */
+    private void publish(UploadSession session, String state) {
+        events.publish(session.getUserId(), "upload", session.getId(), () -> {
+            Map<String, Object> status = new LinkedHashMap<>();
+            status.put("sessionId", session.getId());
+            status.put("state", state);
+            status.put("filename", session.getFilename());
+            status.put("path", session.getPath() == null ? "" : session.getPath());
+            status.put("sizeBytes", session.getSizeBytes());
+            status.put("receivedBytes", "done".equals(state) ? session.getSizeBytes() : receivedBytes(session));
+            return status;
+        });
+    }
+
+    private void save(UploadSession session) throws IOException {
+        try {
+            xmlPersistence.write(sessionFile(session), session);
+        } catch (Exception e) {
+            throw new IOException("Не удалось сохранить сессию загрузки", e);
+        }
+    }
+
+    private Path dataFile(UploadSession session) {
+        return Paths.get(baseDir, session.getUserId(), ".uploads", session.getId() + ".part");
+    }
+
+    private Path sessionFile(UploadSession session) {
+        return Paths.get(baseDir, session.getUserId(), ".uploads", session.getId() + ".xml");
+    }
+}
@@ -0,0 +1,305 @@
+package org.ejectfb.ejectcloud.service;
+
+import org.ejectfb.ejectcloud.model.UsageData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.*;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Учет занятого места по пользователям (data, trash, число файлов).
+ * Счетчики меняются операциями FileStorageService, поэтому проверка квоты и
+ * дашборд админки не обходят диск. Хранится в UsageStore (usage.xml или
+ * база метаданных) и периодически сверяется с диском в фоне.
+ */
+@Service
+public class UsageService {
+    private static final Logger log = LoggerFactory.getLogger(UsageService.class);
+    private static final int RECONCILE_ATTEMPTS = 3;
+    // сколько сверка ждет завершения начатых изменений перед обходом
+    private static final long RECONCILE_WAIT_MS = 1000;
+
+    @Value("${ejectcloud.data-dir:./Data}")
+    private String baseDir;
+
+    private final UsageStore store;
+    private final UserMetadataStore users;
+
+    private final Map<String, UsageData> ledger = new ConcurrentHashMap<>();
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+    // место, зарезервированное незавершенными загрузками; только в памяти,
+    // после рестарта восстанавливается из сохраненных сессий загрузки
+    private final Map<String, Long> reserved = new ConcurrentHashMap<>();
+    // число изменений счетчиков пользователя: сверка по диску применяется,
+    // только если за время обхода счетчики не менялись
+    private final Map<String, Long> versions = new ConcurrentHashMap<>();
+    // изменения на диске, начатые beginChange и еще не учтенные в счетчиках
+    private final Map<String, Integer> inFlight = new ConcurrentHashMap<>();
+
+    public UsageService(UsageStore store, UserMetadataStore users) {
+        this.store = store;
+        this.users = users;
+    }
+
+    public UsageData getUsage(String userId) {
+        UsageData usage = usage(userId);
+        synchronized (usage) {
+            UsageData snapshot = new UsageData();
+            snapshot.setDataBytes(usage.getDataBytes());
+            snapshot.setTrashBytes(usage.getTrashBytes());
+            snapshot.setFileCount(usage.getFileCount());
+            snapshot.setReconciledAt(usage.getReconciledAt());
+            return snapshot;
+        }
+    }
+
+    public long getDataBytes(String userId) {
+        UsageData usage = usage(userId);
+        synchronized (usage) {
+            return usage.getDataBytes();
+        }
+    }
+
+    public long getTotalBytes(String userId) {
+        UsageData usage = usage(userId);
+        synchronized (usage) {
+            return usage.getTotalBytes();
+        }
+    }
+
+    public long getReservedBytes(String userId) {
+        return reserved.getOrDefault(userId, 0L);
+    }
+
+    /**
+     * Резервирует место под загрузку, если оно помещается в квоту вместе с
+     * уже занятым и зарезервированным.
+     */
+    public boolean tryReserve(String userId, long bytes, long quotaBytes) {
+        UsageData usage = usage(userId);
+        synchronized (usage) {
+            long current = reserved.getOrDefault(userId, 0L);
+            if (usage.getTotalBytes() + current + bytes > quotaBytes) {
+                return false;
+            }
+            reserved.put(userId, current + bytes);
+            return true;
+        }
+    }
+
+    public void release(String userId, long bytes) {
+        UsageData usage = usage(userId);
+        synchronized (usage) {
+            long left = reserved.getOrDefault(userId, 0L) - bytes;
+            if (left > 0) {
+                reserved.put(userId, left);
+            } else {
+                reserved.remove(userId);
+            }
+        }
+    }
+
+    /**
+     * Объявляет изменение на диске до самого перемещения или удаления: сверка,
+     * чей обход мог застать диск уже измененным, а счетчики еще нет, не
+     * применяется. Парный вызов endChange - после корректировки счетчиков.
+     */
+    public void beginChange(String userId) {
+        UsageData usage = usage(userId);
+        synchronized (usage) {
+            inFlight.merge(userId, 1, Integer::sum);
+            versions.merge(userId, 1L, Long::sum);
+        }
+    }
+
+    public void endChange(String userId) {
+        UsageData usage = usage(userId);
+        synchronized (usage) {
+            inFlight.computeIfPresent(userId, (id, count) -> count > 1 ? count - 1 : null);
+            usage.notifyAll();
+        }
+    }
+
+    /** Файлы добавлены в data (загрузка). */
+    public void addData(String userId, long bytes, long files) {
+        adjust(userId, bytes, 0, files);
+    }
+
+    /** Файлы перемещены из data в корзину. */
+    public void moveToTrash(String userId, long bytes, long files) {
+        adjust(userId, -bytes, bytes, -files);
+    }
+
+    /** Файлы восстановлены из корзины в data. */
+    public void restoreFromTrash(String userId, long bytes, long files) {
+        adjust(userId, bytes, -bytes, files);
+    }
+
+    /** Файлы окончательно удалены из корзины. */
+    public void purgeTrash(String userId, long bytes) {
+        adjust(userId, 0, -bytes, 0);
+    }
+
+    private void adjust(String userId, long dataDelta, long trashDelta, long filesDelta) {
+        UsageData usage = usage(userId);
+        synchronized (usage) {
+            usage.setDataBytes(Math.max(0, usage.getDataBytes() + dataDelta));
+            usage.setTrashBytes(Math.max(0, usage.getTrashBytes() + trashDelta));
+            usage.setFileCount(Math.max(0, usage.getFileCount() + filesDelta));
+            versions.merge(userId, 1L, Long::sum);
+        }
+        dirty.add(userId);
+    }
+
+    /**
+     * Пересчитывает счетчики пользователя по диску. Диск читается без
+     * блокировки, поэтому обход начинается, когда начатых изменений нет; если
+     * за время обхода началось новое (загрузка, удаление), обход не совпадает
+     * со счетчиками по времени и повторяется.
+     */
+    public void reconcile(String userId) {
+        for (int attempt = 0; attempt < RECONCILE_ATTEMPTS; attempt++) {
+            UsageData usage = usage(userId);
+            long version;
+            synchronized (usage) {
+                long deadline = System.currentTimeMillis() + RECONCILE_WAIT_MS;
+                long left;
+                while (inFlight.containsKey(userId) && (left = deadline - System.currentTimeMillis()) > 0) {
+                    try {
+                        usage.wait(left);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                if (inFlight.containsKey(userId)) {
+                    continue;
+                }
+                version = versions.getOrDefault(userId, 0L);
+            }
+            UsageData scanned = scan(userId);
+            synchronized (usage) {
+                if (versions.getOrDefault(userId, 0L) != version || ledger.get(userId) != usage) {
+                    continue;
+                }
+                if (usage.getDataBytes() != scanned.getDataBytes()
+                    || usage.getTrashBytes() != scanned.getTrashBytes()
+                    || usage.getFileCount() != scanned.getFileCount()) {
+                    log.info("[usage] reconciled userId={} data {} -> {} trash {} -> {}", userId,
+                        usage.getDataBytes(), scanned.getDataBytes(), usage.getTrashBytes(), scanned.getTrashBytes());
+                }
+                usage.setDataBytes(scanned.getDataBytes());
+                usage.setTrashBytes(scanned.getTrashBytes());
+                usage.setFileCount(scanned.getFileCount());
+                usage.setReconciledAt(scanned.getReconciledAt());
+            }
+            dirty.add(userId);
+            return;
+        }
+        log.info("[usage] reconcile postponed userId={} reason=concurrent changes", userId);
+    }
+
+    @Scheduled(initialDelay = 60000, fixedRate = 3600000) // через минуту после старта, затем каждый час
+    public void reconcileAll() {
+        try {
+            for (String userId : users.userIds()) {
+                reconcile(userId);
+            }
+        } catch (IOException e) {
+            log.warn("[usage] reconcile failed msg={}", e.getMessage());
+        }
+        flush();
+    }
+
+    /** Забывает счетчики (пользователь удален или переименован). */
+    public void evict(String userId) {
+        ledger.remove(userId);
+        versions.remove(userId);
+        dirty.remove(userId);
+        store.forget(userId);
+    }
+
+    @Scheduled(fixedDelay = 5000)
+    public void flush() {
+        for (String userId : new ArrayList<>(dirty)) {
+            dirty.remove(userId);
+            UsageData usage = ledger.get(userId);
+            Path userDir = Paths.get(baseDir, userId);
+            if (usage == null || !Files.isDirectory(userDir)) {
+                continue;
+            }
+            try {
+                store.save(userId, getUsage(userId));
+            } catch (Exception e) {
+                dirty.add(userId);
+                log.warn("[usage] save failed userId={} msg={}", userId, e.getMessage());
+            }
+        }
+        store.flush();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flush();
+    }
+
+    private UsageData usage(String userId) {
+        return ledger.computeIfAbsent(userId, this::load);
+    }
+
+    private UsageData load(String userId) {
+        try {
+            UsageData stored = store.load(userId);
+            if (stored != null) {
+                return stored;
+            }
+        } catch (Exception e) {
+            log.warn("[usage] load failed userId={} msg={}, rescanning", userId, e.getMessage());
+        }
+        dirty.add(userId);
+        return scan(userId);
+    }
+
+    private UsageData scan(String userId) {
+        Path userDir = Paths.get(baseDir, userId);
+        long[] data = walk(userDir.resolve("data"));
+        long[] trash = walk(userDir.resolve("trash"));
+        UsageData usage = new UsageData();
+        usage.setDataBytes(data[0]);
+        usage.setFileCount(data[1]);
+        usage.setTrashBytes(trash[0]);
+        usage.setReconciledAt(Instant.now().toString());
+        return usage;
+    }
+
+    /** Возвращает {байты, число файлов} для дерева. */
+    static long[] walk(Path dir) {
+        long[] totals = new long[2];
+        if (!Files.exists(dir)) {
+            return totals;
+        }
+        try (var walk = Files.walk(dir)) {
+            walk.filter(Files::isRegularFile).forEach(path -> {
+                try {
+                    totals[0] += Files.size(path);
+                    totals[1]++;
+                } catch (IOException e) {
+                    // skip file
+                }
+            });
+        } catch (IOException e) {
+            log.warn("[usage] scan failed dir={} msg={}", dir, e.getMessage());
+        }
+        return totals;
+    }
+}
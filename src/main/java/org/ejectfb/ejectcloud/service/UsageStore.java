@@ -0,0 +1,23 @@
+package org.ejectfb.ejectcloud.service;
+
+import org.ejectfb.ejectcloud.model.UsageData;
+
+import java.io.IOException;
+
+/**
+ * Сохраненные счетчики места по пользователям. Реализация выбирается
+ * ejectcloud.metadata.store.
+ */
+public interface UsageStore {
+
+    /** Возвращает null, если счетчики не сохранялись. */
+    UsageData load(String userId) throws IOException;
+
+    void save(String userId, UsageData usage) throws IOException;
+
+    /** Забывает счетчики (пользователь удален или переименован). */
+    void forget(String userId);
+
+    /** Завершает серию save. */
+    void flush();
+}
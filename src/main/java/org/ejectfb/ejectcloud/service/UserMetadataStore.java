@@ -0,0 +1,55 @@
+package org.ejectfb.ejectcloud.service;
+
+import org.ejectfb.ejectcloud.model.UserData;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Хранилище данных пользователя (профиль и ссылки): файлы в Data/&lt;user&gt;
+ * (ejectcloud.users.store) или база метаданных (ejectcloud.metadata.store).
+ * Каждая реализация при загрузке переносит данные, сохраненные в формате
+ * другой, так что переключение не теряет пользователей. Вызовы для одного пользователя идут под его
+ * замком (UserService.userLock), для разных - параллельно.
+ */
+public interface UserMetadataStore {
+    String XML_FILE = "user.xml";
+    String JOURNAL_FILE = "user.journal";
+
+    /** Возвращает null, если пользователя нет. */
+    UserData load(String userId) throws IOException;
+
+    /** Переданный объект после сохранения не меняется: правка идет по копии. */
+    void save(String userId, UserData userData) throws IOException;
+
+    /** Забывает пользователя (папка удалена или переименована). */
+    void forget(String userId);
+
+    /** Все сохраненные пользователи. */
+    List<String> userIds() throws IOException;
+
+    /** Папка принадлежит пользователю, если в ней есть данные в любом из форматов. */
+    static boolean exists(Path userDir) {
+        return Files.isRegularFile(userDir.resolve(XML_FILE)) || Files.isRegularFile(userDir.resolve(JOURNAL_FILE));
+    }
+
+    /** Пользователи файловых форматов - папки Data с данными. */
+    static List<String> scanUserDirs(Path baseDir) throws IOException {
+        List<String> userIds = new ArrayList<>();
+        if (!Files.isDirectory(baseDir)) {
+            return userIds;
+        }
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(baseDir)) {
+            for (Path userDir : dirs) {
+                if (exists(userDir)) {
+                    userIds.add(userDir.getFileName().toString());
+                }
+            }
+        }
+        return userIds;
+    }
+}
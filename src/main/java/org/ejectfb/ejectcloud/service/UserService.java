@@ -1,21 +1,31 @@
 package org.ejectfb.ejectcloud.service;
 
+import org.ejectfb.ejectcloud.model.ShareData;
 import org.ejectfb.ejectcloud.model.UserData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
-import jakarta.xml.bind.JAXBContext;
-import jakarta.xml.bind.Marshaller;
-import jakarta.xml.bind.Unmarshaller;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import java.io.IOException;
 import java.nio.file.*;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
 
 @Service
 public class UserService {
+    private static final Logger log = LoggerFactory.getLogger(UserService.class);
     
     @Value("${ejectcloud.data-dir:./Data}")
     private String baseDir;
@@ -23,10 +33,60 @@ public class UserService {
     @Value("${ejectcloud.default.quota:1073741824}")
     private long defaultQuota;
     
+    @Value("${ejectcloud.users.sync-writes:false}")
+    private boolean syncWrites;
+    
+    private static final int LOCK_STRIPES = 64;
+    
     private final PasswordService passwordService;
+    private final XmlPersistenceService xmlPersistence;
+    private final UserMetadataStore store;
+    private final FileCatalogService fileCatalog;
+    private final UsageService usageService;
+    private final ShareIndexService shareIndex;
+    
+    // Реестр пользователей в памяти: загружается один раз при старте и
+    // обновляется при каждом сохранении/удалении; записи в нем не меняются,
+    // правка кладет новую копию. На диск изменения уходят через flush
+    private final Map<String, UserData> usersById = new ConcurrentHashMap<>();
+    private final Map<String, String> userIdByTelegramId = new ConcurrentHashMap<>();
+    private final Map<String, String> userIdByEmail = new ConcurrentHashMap<>();
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
     
-    public UserService(PasswordService passwordService) {
+    // Чтение-правка-запись данных одного пользователя идут по очереди:
+    // замки по полосам userId, общие для профиля, ссылок и операций с файлами
+    private final ReentrantLock[] userLocks = new ReentrantLock[LOCK_STRIPES];
+    
+    public UserService(PasswordService passwordService, XmlPersistenceService xmlPersistence,
+                       UserMetadataStore store, FileCatalogService fileCatalog,
+                       UsageService usageService, ShareIndexService shareIndex) {
         this.passwordService = passwordService;
+        this.xmlPersistence = xmlPersistence;
+        this.store = store;
+        this.fileCatalog = fileCatalog;
+        this.usageService = usageService;
+        this.shareIndex = shareIndex;
+        Arrays.setAll(userLocks, i -> new ReentrantLock());
+    }
+    
+    @PostConstruct
+    public void loadRegistry() {
+        try {
+            for (String userId : store.userIds()) {
+                xmlPersistence.deleteStaleTemp(Paths.get(baseDir, userId));
+                try {
+                    UserData userData = readStored(userId);
+                    if (userData != null) {
+                        index(userId, userData);
+                    }
+                } catch (RuntimeException e) {
+                    // пропускаем поврежденные данные пользователя
+                    log.warn("[users] load failed userId={} msg={}", userId, e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to load user registry", e);
+        }
     }
     
     public void initializeDefaultAdmin() {
@@ -42,7 +102,9 @@ public class UserService {
     }
     
     private boolean isEmpty(Path path) throws IOException {
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+        // файл базы метаданных создается до первого пользователя
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(path,
+                entry -> !entry.getFileName().toString().startsWith(MetadataDatabase.FILE))) {
             return !stream.iterator().hasNext();
         }
     }
@@ -56,35 +118,20 @@ public class UserService {
     }
     
     public UserData findUserByEmail(String email) {
-        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(Paths.get(baseDir))) {
-            for (Path userDir : dirs) {
-                if (Files.isDirectory(userDir)) {
-                    UserData userData = loadUserData(userDir.getFileName().toString());
-                    if (userData != null && email.equals(userData.getEmail())) {
-                        return userData;
-                    }
-                }
-            }
-        } catch (IOException e) {
-            // ignore
-        }
-        return null;
+        if (email == null) return null;
+        UserData userData = findUserById(userIdByEmail.get(email));
+        // ключ мог устареть после смены email - сверяем с актуальными данными
+        return userData != null && email.equals(userData.getEmail()) ? userData : null;
     }
     
     public UserData findUserByTelegramId(String telegramId) {
-        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(Paths.get(baseDir))) {
-            for (Path userDir : dirs) {
-                if (Files.isDirectory(userDir)) {
-                    UserData userData = loadUserData(userDir.getFileName().toString());
-                    if (userData != null && telegramId.equals(userData.getTelegramId())) {
-                        return userData;
-                    }
-                }
-            }
-        } catch (IOException e) {
-            // ignore
-        }
-        return null;
+        if (telegramId == null) return null;
+        UserData userData = findUserById(userIdByTelegramId.get(telegramId));
+        return userData != null && telegramId.equals(userData.getTelegramId()) ? userData : null;
+    }
+    
+    public UserData findUserById(String userId) {
+        return userId == null ? null : usersById.get(userId);
     }
     
     public UserData createUser(String email, String password, String displayName, String telegramId, boolean isAdmin) {
@@ -109,40 +156,48 @@ public class UserService {
     }
     
     public void updatePassword(String userId, String newPassword) {
-        UserData userData = loadUserData(userId);
-        if (userData != null) {
+        updateUserData(userId, userData -> {
             String salt = passwordService.generateSalt();
             String passwordHash = passwordService.hashPassword(newPassword, salt);
             userData.setPasswordHash(passwordHash);
             userData.setSalt(salt);
             userData.setMustChangePassword(false);
-            saveUserData(userId, userData);
-        }
+            return true;
+        });
     }
     
     public void resetPassword(String userId) {
-        UserData userData = loadUserData(userId);
-        if (userData != null) {
+        updateUserData(userId, userData -> {
             String salt = passwordService.generateSalt();
             String passwordHash = passwordService.hashPassword(userData.getEmail(), salt);
             userData.setPasswordHash(passwordHash);
             userData.setSalt(salt);
             userData.setMustChangePassword(true);
-            saveUserData(userId, userData);
-        }
+            return true;
+        });
     }
     
     public void updateProfile(String userId, String email, String displayName) {
-        UserData userData = loadUserData(userId);
-        if (userData != null) {
+        updateUserData(userId, userData -> {
             userData.setEmail(email);
             userData.setDisplayName(displayName);
-            saveUserData(userId, userData);
-        }
+            return true;
+        });
     }
     
     public void updateUser(String userId, String email, String displayName, String telegramId, long quotaBytes) {
+        ReentrantLock lock = userLock(userId);
+        lock.lock();
+        try {
+            updateUserLocked(userId, email, displayName, telegramId, quotaBytes);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private void updateUserLocked(String userId, String email, String displayName, String telegramId, long quotaBytes) {
         UserData userData = loadUserData(userId);
+        boolean renamed = false;
         if (userData != null) {
             // Переименовываем папку только если изменилось отображаемое имя
             if (!displayName.equals(userData.getDisplayName())) {
@@ -154,8 +209,12 @@ public class UserService {
                     Path newDir = Paths.get(baseDir, newUserId);
                     try {
                         Files.move(oldDir, newDir);
+                        unindex(userId);
+                        fileCatalog.evict(userId);
+                        usageService.evict(userId);
                         userData.setId(newUserId);
                         userId = newUserId; // Обновляем локальную переменную
+                        renamed = true;
                     } catch (IOException e) {
                         throw new RuntimeException("Failed to rename user directory", e);
                     }
@@ -167,27 +226,24 @@ public class UserService {
             userData.setTelegramId(telegramId);
             userData.setQuotaBytes(quotaBytes);
             saveUserData(userId, userData);
+            if (renamed) {
+                // старую запись хранилище уже забыло: новую пишем сразу, не дожидаясь flush
+                try {
+                    writeStored(userId, userData);
+                } catch (Exception e) {
+                    throw new RuntimeException("Cannot save user data", e);
+                }
+            }
         }
     }
     
     public List<UserData> getAllUsers() {
-        List<UserData> users = new ArrayList<>();
-        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(Paths.get(baseDir))) {
-            for (Path userDir : dirs) {
-                if (Files.isDirectory(userDir)) {
-                    UserData userData = loadUserData(userDir.getFileName().toString());
-                    if (userData != null) {
-                        users.add(userData);
-                    }
-                }
-            }
-        } catch (IOException e) {
-            // ignore
-        }
-        return users;
+        return new ArrayList<>(usersById.values());
     }
     
     public void deleteUser(String userId) {
+        ReentrantLock lock = userLock(userId);
+        lock.lock();
         try {
             Path userDir = Paths.get(baseDir, userId);
             if (Files.exists(userDir)) {
@@ -201,8 +257,13 @@ public class UserService {
                         }
                     });
             }
+            unindex(userId);
+            fileCatalog.evict(userId);
+            usageService.evict(userId);
         } catch (IOException e) {
             throw new RuntimeException("Failed to delete user", e);
+        } finally {
+            lock.unlock();
         }
     }
     
@@ -218,40 +279,174 @@ public class UserService {
         return userId;
     }
     
-    private Path getUserDir(String userId) {
-        Path dir = Paths.get(baseDir, userId);
-        try {
-            Files.createDirectories(dir);
-        } catch (IOException e) {
-            throw new RuntimeException("Cannot create user directory", e);
+    /**
+     * Данные пользователя для правки: копия из реестра (он новее хранилища,
+     * пока запись отложена), а без реестра - из хранилища. Реестр не
+     * меняется, пока копию не передадут в saveUserData.
+     */
+    public UserData loadUserData(String userId) {
+        UserData cached = usersById.get(userId);
+        if (cached != null) {
+            return copyOf(cached);
         }
-        return dir;
+        return readStored(userId);
     }
     
-    public UserData loadUserData(String userId) {
-        Path userFile = getUserDir(userId).resolve("user.xml");
-        if (!Files.exists(userFile)) {
-            return null;
-        }
-        
+    private UserData readStored(String userId) {
         try {
-            JAXBContext context = JAXBContext.newInstance(UserData.class);
-            Unmarshaller unmarshaller = context.createUnmarshaller();
-            return (UserData) unmarshaller.unmarshal(userFile.toFile());
+            return store.load(userId);
         } catch (Exception e) {
             throw new RuntimeException("Cannot load user data", e);
         }
     }
     
+    /**
+     * Обновляет реестр сразу, а хранилище - при следующем flush: серия правок
+     * одного пользователя (пакетные операции, ссылки) дает одну запись.
+     * При ejectcloud.users.sync-writes=true данные пишутся до возврата.
+     */
     public void saveUserData(String userId, UserData userData) {
-        Path userFile = getUserDir(userId).resolve("user.xml");
+        ReentrantLock lock = userLock(userId);
+        lock.lock();
         try {
-            JAXBContext context = JAXBContext.newInstance(UserData.class);
-            Marshaller marshaller = context.createMarshaller();
-            marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
-            marshaller.marshal(userData, userFile.toFile());
+            // папка создается сразу: она занимает id (generateUserId), а flush
+            // пропускает пользователей без папки как удаленных
+            Files.createDirectories(Paths.get(baseDir, userId));
+            index(userId, userData);
+            if (syncWrites) {
+                writeStored(userId, userData);
+            } else {
+                dirty.add(userId);
+            }
         } catch (Exception e) {
             throw new RuntimeException("Cannot save user data", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    @Scheduled(fixedDelayString = "${ejectcloud.users.flush-ms:1000}")
+    public void flush() {
+        for (String userId : new ArrayList<>(dirty)) {
+            ReentrantLock lock = userLock(userId);
+            lock.lock();
+            try {
+                // снимаем пометку под замком: правка после этой точки пометит заново
+                dirty.remove(userId);
+                UserData userData = usersById.get(userId);
+                if (userData == null || !Files.isDirectory(Paths.get(baseDir, userId))) {
+                    continue;
+                }
+                writeStored(userId, userData);
+            } catch (Exception e) {
+                dirty.add(userId);
+                log.warn("[users] save failed userId={} msg={}", userId, e.getMessage());
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+    
+    @PreDestroy
+    public void shutdown() {
+        flush();
+    }
+    
+    private void writeStored(String userId, UserData userData) throws Exception {
+        store.save(userId, userData);
+    }
+    
+    /** Глубокая копия: ссылки копируются тоже, их правят на месте. */
+    static UserData copyOf(UserData source) {
+        UserData copy = new UserData();
+        copy.setId(source.getId());
+        copy.setEmail(source.getEmail());
+        copy.setDisplayName(source.getDisplayName());
+        copy.setTelegramId(source.getTelegramId());
+        copy.setPasswordHash(source.getPasswordHash());
+        copy.setSalt(source.getSalt());
+        copy.setQuotaBytes(source.getQuotaBytes());
+        copy.setCreatedAt(source.getCreatedAt());
+        copy.setAdmin(source.isAdmin());
+        copy.setMustChangePassword(source.isMustChangePassword());
+        List<ShareData> shares = new ArrayList<>(source.getShares().size());
+        for (ShareData share : source.getShares()) {
+            ShareData shareCopy = new ShareData();
+            shareCopy.setShareId(share.getShareId());
+            shareCopy.setFileId(share.getFileId());
+            shareCopy.setCreatedAt(share.getCreatedAt());
+            shareCopy.setExpiresAt(share.getExpiresAt());
+            shares.add(shareCopy);
+        }
+        copy.setShares(shares);
+        return copy;
+    }
+    
+    /**
+     * Замок пользователя для чтения-правки-записи его данных. Повторный
+     * захват тем же потоком разрешен, поэтому под ним можно вызывать
+     * saveUserData и updateUserData.
+     */
+    public ReentrantLock userLock(String userId) {
+        return userLocks[Math.floorMod(userId.hashCode(), LOCK_STRIPES)];
+    }
+    
+    /**
+     * Берет копию данных пользователя, применяет change и, если тот вернул true, сохраняет;
+     * все под замком пользователя. Возвращает данные после изменения или
+     * null, если пользователя нет.
+     */
+    public UserData updateUserData(String userId, Predicate<UserData> change) {
+        ReentrantLock lock = userLock(userId);
+        lock.lock();
+        try {
+            UserData userData = loadUserData(userId);
+            if (userData != null && change.test(userData)) {
+                saveUserData(userId, userData);
+            }
+            return userData;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private void index(String userId, UserData userData) {
+        UserData previous = usersById.put(userId, userData);
+        // убираем только изменившиеся ключи: параллельный поиск по токену
+        // не должен застать пользователя без ключа
+        if (previous != null) {
+            if (previous.getEmail() != null && !previous.getEmail().equals(userData.getEmail())) {
+                userIdByEmail.remove(previous.getEmail(), userId);
+            }
+            if (previous.getTelegramId() != null && !previous.getTelegramId().equals(userData.getTelegramId())) {
+                userIdByTelegramId.remove(previous.getTelegramId(), userId);
+            }
+        }
+        if (userData.getEmail() != null) {
+            userIdByEmail.put(userData.getEmail(), userId);
+        }
+        if (userData.getTelegramId() != null) {
+            userIdByTelegramId.put(userData.getTelegramId(), userId);
+        }
+        shareIndex.reindexUser(userId, userData.getShares());
+    }
+    
+    private void unindex(String userId) {
+        dirty.remove(userId);
+        store.forget(userId);
+        UserData previous = usersById.remove(userId);
+        if (previous != null) {
+            removeKeys(userId, previous);
+        }
+        shareIndex.removeUser(userId);
+    }
+    
+    private void removeKeys(String userId, UserData userData) {
+        if (userData.getEmail() != null) {
+            userIdByEmail.remove(userData.getEmail(), userId);
+        }
+        if (userData.getTelegramId() != null) {
+            userIdByTelegramId.remove(userData.getTelegramId(), userId);
         }
     }
-}
\ No newline at end of file
+}
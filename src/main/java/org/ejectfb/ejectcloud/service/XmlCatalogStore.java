@@ -0,0 +1,148 @@
+package org.ejectfb.ejectcloud.service;
+
+import org.ejectfb.ejectcloud.model.FileCatalog;
+import org.ejectfb.ejectcloud.model.FileData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Каталог в памяти и в Data/&lt;user&gt;/files.xml: файл читается при первом
+ * обращении и переписывается целиком на flush, если каталог менялся.
+ */
+public class XmlCatalogStore implements CatalogStore {
+    private static final Logger log = LoggerFactory.getLogger(XmlCatalogStore.class);
+    static final String CATALOG_FILE = "files.xml";
+
+    private final Path baseDir;
+    private final XmlPersistenceService xmlPersistence;
+
+    private final Map<String, NavigableMap<String, FileData>> catalogs = new ConcurrentHashMap<>();
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+
+    public XmlCatalogStore(Path baseDir, XmlPersistenceService xmlPersistence) {
+        this.baseDir = baseDir;
+        this.xmlPersistence = xmlPersistence;
+    }
+
+    @Override
+    public boolean contains(String userId) {
+        return loaded(userId) != null;
+    }
+
+    @Override
+    public List<FileData> list(String userId) {
+        return new ArrayList<>(catalog(userId).values());
+    }
+
+    @Override
+    public List<FileData> listRange(String userId, String from, String to) {
+        return new ArrayList<>(catalog(userId).subMap(from, true, to, false).values());
+    }
+
+    @Override
+    public FileData get(String userId, String fileId) {
+        return catalog(userId).get(fileId);
+    }
+
+    @Override
+    public void put(String userId, FileData fileData) {
+        catalog(userId).put(fileData.getId(), fileData);
+        dirty.add(userId);
+    }
+
+    @Override
+    public FileData remove(String userId, String fileId) {
+        FileData removed = catalog(userId).remove(fileId);
+        dirty.add(userId);
+        return removed;
+    }
+
+    @Override
+    public List<FileData> removeRange(String userId, String from, String to) {
+        NavigableMap<String, FileData> entries = catalog(userId).subMap(from, true, to, false);
+        List<FileData> removed = new ArrayList<>(entries.values());
+        entries.clear();
+        dirty.add(userId);
+        return removed;
+    }
+
+    @Override
+    public void replace(String userId, Map<String, FileData> entries) {
+        catalogs.put(userId, new ConcurrentSkipListMap<>(entries));
+        dirty.add(userId);
+    }
+
+    @Override
+    public void forget(String userId) {
+        catalogs.remove(userId);
+        dirty.remove(userId);
+    }
+
+    @Override
+    public void flush() {
+        for (String userId : new ArrayList<>(dirty)) {
+            dirty.remove(userId);
+            NavigableMap<String, FileData> catalog = catalogs.get(userId);
+            Path userDir = baseDir.resolve(userId);
+            if (catalog == null || !Files.isDirectory(userDir)) {
+                continue;
+            }
+            FileCatalog fileCatalog = new FileCatalog();
+            fileCatalog.setUpdatedAt(Instant.now().toString());
+            fileCatalog.setFiles(new ArrayList<>(catalog.values()));
+            try {
+                xmlPersistence.write(userDir.resolve(CATALOG_FILE), fileCatalog);
+            } catch (Exception e) {
+                dirty.add(userId);
+                log.warn("[catalog] save failed userId={} msg={}", userId, e.getMessage());
+            }
+        }
+    }
+
+    private NavigableMap<String, FileData> catalog(String userId) {
+        NavigableMap<String, FileData> catalog = loaded(userId);
+        return catalog != null ? catalog : catalogs.computeIfAbsent(userId, k -> new ConcurrentSkipListMap<>());
+    }
+
+    /** Каталог из памяти или из files.xml; null, если его нет нигде. */
+    private NavigableMap<String, FileData> loaded(String userId) {
+        NavigableMap<String, FileData> catalog = catalogs.get(userId);
+        if (catalog != null) {
+            return catalog;
+        }
+        catalog = read(xmlPersistence, baseDir.resolve(userId).resolve(CATALOG_FILE), userId);
+        if (catalog == null) {
+            return null;
+        }
+        NavigableMap<String, FileData> previous = catalogs.putIfAbsent(userId, catalog);
+        return previous != null ? previous : catalog;
+    }
+
+    /** Каталог из files.xml; null, если файла нет или он поврежден. */
+    static NavigableMap<String, FileData> read(XmlPersistenceService xmlPersistence, Path catalogFile, String userId) {
+        if (!Files.isRegularFile(catalogFile)) {
+            return null;
+        }
+        try {
+            NavigableMap<String, FileData> catalog = new ConcurrentSkipListMap<>();
+            for (FileData fileData : xmlPersistence.read(catalogFile, FileCatalog.class).getFiles()) {
+                catalog.put(fileData.getId(), fileData);
+            }
+            return catalog;
+        } catch (Exception e) {
+            log.warn("[catalog] load failed userId={} msg={}, rescanning", userId, e.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package org.ejectfb.ejectcloud.service;
+
+import org.springframework.stereotype.Service;
+
+import jakarta.xml.bind.JAXBContext;
+import jakarta.xml.bind.JAXBException;
+import jakarta.xml.bind.Marshaller;
+import jakarta.xml.bind.Unmarshaller;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Общая XML-персистентность для моделей (user.xml, stats.xml).
+ * JAXBContext потокобезопасен и дорог в создании, поэтому строится один раз
+ * на класс модели; Marshaller/Unmarshaller не потокобезопасны и кешируются
+ * по одному на поток. Запись атомарная: файл никогда не бывает недописанным.
+ */
+@Service
+public class XmlPersistenceService {
+
+    private final Map<Class<?>, JAXBContext> contexts = new ConcurrentHashMap<>();
+
+    private final ThreadLocal<Map<Class<?>, Marshaller>> marshallers = ThreadLocal.withInitial(HashMap::new);
+    private final ThreadLocal<Map<Class<?>, Unmarshaller>> unmarshallers = ThreadLocal.withInitial(HashMap::new);
+
+    public <T> T read(Path file, Class<T> type) throws JAXBException {
+        return type.cast(unmarshaller(type).unmarshal(file.toFile()));
+    }
+
+    /**
+     * Пишет во временный файл в той же папке, сбрасывает его на диск и
+     * переименовывает поверх целевого. Параллельный читатель и сбой посреди
+     * записи видят либо старую версию целиком, либо новую.
+     */
+    public void write(Path file, Object value) throws JAXBException, IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(dir, "." + file.getFileName(), ".tmp");
+        try {
+            try (FileOutputStream out = new FileOutputStream(tmp.toFile())) {
+                BufferedOutputStream buffered = new BufferedOutputStream(out, 64 * 1024);
+                marshaller(value.getClass()).marshal(value, buffered);
+                buffered.flush();
+                out.getFD().sync();
+            }
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        syncDirectory(dir);
+    }
+
+    /**
+     * Удаляет временные файлы, оставшиеся в папке после сбоя посреди записи.
+     * Вызывать до того, как в папку начнут писать.
+     */
+    public void deleteStaleTemp(Path dir) {
+        try (DirectoryStream<Path> temps = Files.newDirectoryStream(dir, ".*.tmp")) {
+            for (Path tmp : temps) {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    /** Переименование надежно только после fsync папки; где так нельзя (Windows), пропускаем. */
+    static void syncDirectory(Path dir) {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException | UnsupportedOperationException ignored) {
+        }
+    }
+
+    private JAXBContext context(Class<?> type) throws JAXBException {
+        JAXBContext context = contexts.get(type);
+        if (context == null) {
+            context = JAXBContext.newInstance(type);
+            JAXBContext existing = contexts.putIfAbsent(type, context);
+            if (existing != null) {
+                context = existing;
+            }
+        }
+        return context;
+    }
+
+    private Marshaller marshaller(Class<?> type) throws JAXBException {
+        Map<Class<?>, Marshaller> cache = marshallers.get();
+        Marshaller marshaller = cache.get(type);
+        if (marshaller == null) {
+            marshaller = context(type).createMarshaller();
+            marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
+            cache.put(type, marshaller);
+        }
+        return marshaller;
+    }
+
+    private Unmarshaller unmarshaller(Class<?> type) throws JAXBException {
+        Map<Class<?>, Unmarshaller> cache = unmarshallers.get();
+        Unmarshaller unmarshaller = cache.get(type);
+        if (unmarshaller == null) {
+            unmarshaller = context(type).createUnmarshaller();
+            cache.put(type, unmarshaller);
+        }
+        return unmarshaller;
+    }
+}
@@ -0,0 +1,54 @@
+package org.ejectfb.ejectcloud.service;
+
+import org.ejectfb.ejectcloud.model.UsageData;
+
+import jakarta.xml.bind.JAXBException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/** Счетчики в Data/&lt;user&gt;/usage.xml. */
+public class XmlUsageStore implements UsageStore {
+    static final String USAGE_FILE = "usage.xml";
+
+    private final Path baseDir;
+    private final XmlPersistenceService xmlPersistence;
+
+    public XmlUsageStore(Path baseDir, XmlPersistenceService xmlPersistence) {
+        this.baseDir = baseDir;
+        this.xmlPersistence = xmlPersistence;
+    }
+
+    @Override
+    public UsageData load(String userId) throws IOException {
+        return read(xmlPersistence, baseDir.resolve(userId).resolve(USAGE_FILE));
+    }
+
+    @Override
+    public void save(String userId, UsageData usage) throws IOException {
+        try {
+            xmlPersistence.write(baseDir.resolve(userId).resolve(USAGE_FILE), usage);
+        } catch (JAXBException e) {
+            throw new IOException("Cannot write usage.xml", e);
+        }
+    }
+
+    @Override
+    public void forget(String userId) {
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    static UsageData read(XmlPersistenceService xmlPersistence, Path usageFile) throws IOException {
+        if (!Files.isRegularFile(usageFile)) {
+            return null;
+        }
+        try {
+            return xmlPersistence.read(usageFile, UsageData.class);
+        } catch (JAXBException e) {
+            throw new IOException("Cannot read " + usageFile, e);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package org.ejectfb.ejectcloud.service;
+
+import org.ejectfb.ejectcloud.model.UserData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jakarta.xml.bind.JAXBException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+/**
+ * Данные пользователя в user.xml; каждое сохранение переписывает файл
+ * целиком. Формат по умолчанию.
+ */
+public class XmlUserMetadataStore implements UserMetadataStore {
+    private static final Logger log = LoggerFactory.getLogger(XmlUserMetadataStore.class);
+
+    private final Path baseDir;
+    private final XmlPersistenceService xmlPersistence;
+
+    public XmlUserMetadataStore(Path baseDir, XmlPersistenceService xmlPersistence) {
+        this.baseDir = baseDir;
+        this.xmlPersistence = xmlPersistence;
+    }
+
+    @Override
+    public UserData load(String userId) throws IOException {
+        Path dir = baseDir.resolve(userId);
+        Path xml = dir.resolve(XML_FILE);
+        try {
+            if (Files.isRegularFile(xml)) {
+                return xmlPersistence.read(xml, UserData.class);
+            }
+            Path journal = dir.resolve(JOURNAL_FILE);
+            if (!Files.isRegularFile(journal)) {
+                return null;
+            }
+            // пользователь сохранен журналом: переносим в XML, журнал оставляем копией
+            UserData userData = JournalUserMetadataStore.replay(journal).userData;
+            xmlPersistence.write(xml, userData);
+            Files.move(journal, dir.resolve(JOURNAL_FILE + ".migrated"), StandardCopyOption.REPLACE_EXISTING);
+            log.info("[users] migrated userId={} from=journal to=xml shares={}", userId, userData.getShares().size());
+            return userData;
+        } catch (JAXBException e) {
+            throw new IOException("Cannot read " + xml, e);
+        }
+    }
+
+    @Override
+    public void save(String userId, UserData userData) throws IOException {
+        Path dir = baseDir.resolve(userId);
+        Files.createDirectories(dir);
+        try {
+            xmlPersistence.write(dir.resolve(XML_FILE), userData);
+        } catch (JAXBException e) {
+            throw new IOException("Cannot write user.xml", e);
+        }
+    }
+
+    @Override
+    public void forget(String userId) {
+    }
+
+    @Override
+    public List<String> userIds() throws IOException {
+        return UserMetadataStore.scanUserDirs(baseDir);
+    }
+}
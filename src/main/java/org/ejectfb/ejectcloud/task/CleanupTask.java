@@ -1,7 +1,10 @@
 package org.ejectfb.ejectcloud.task;
 
+import org.ejectfb.ejectcloud.service.ArchiveService;
+import org.ejectfb.ejectcloud.service.BlobStoreService;
 import org.ejectfb.ejectcloud.service.FileStorageService;
 import org.ejectfb.ejectcloud.service.JwtService;
+import org.ejectfb.ejectcloud.service.UploadSessionService;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
@@ -13,13 +16,21 @@ public class CleanupTask {
     
     private final FileStorageService storageService;
     private final JwtService jwtService;
+    private final UploadSessionService uploadSessionService;
+    private final BlobStoreService blobStore;
+    private final ArchiveService archiveService;
     
     @Value("${ejectcloud.token.inactive.minutes:30}")
     private int inactiveMinutes;
     
-    public CleanupTask(FileStorageService storageService, JwtService jwtService) {
+    public CleanupTask(FileStorageService storageService, JwtService jwtService,
+                       UploadSessionService uploadSessionService, BlobStoreService blobStore,
+                       ArchiveService archiveService) {
         this.storageService = storageService;
         this.jwtService = jwtService;
+        this.uploadSessionService = uploadSessionService;
+        this.blobStore = blobStore;
+        this.archiveService = archiveService;
     }
     
     @Scheduled(fixedRate = 3600000) // каждый час
@@ -32,4 +43,21 @@ public class CleanupTask {
         storageService.cleanupInactiveTokens(Duration.ofMinutes(inactiveMinutes));
         jwtService.cleanupExpiredTokens();
     }
+    
+    @Scheduled(fixedRate = 3600000) // каждый час
+    public void cleanupAbandonedUploads() {
+        uploadSessionService.expireSessions();
+    }
+    
+    @Scheduled(fixedRate = 60000) // каждую минуту
+    public void cleanupArchiveJobs() {
+        archiveService.expireJobs();
+    }
+    
+    @Scheduled(initialDelay = 600000, fixedRate = 3600000) // через 10 минут после старта, затем каждый час
+    public void cleanupUnreferencedBlobs() {
+        if (blobStore.isEnabled()) {
+            blobStore.collectGarbage();
+        }
+    }
 }
\ No newline at end of file
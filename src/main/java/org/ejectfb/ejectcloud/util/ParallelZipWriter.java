@@ -0,0 +1,225 @@
+package org.ejectfb.ejectcloud.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Многопоточная сборка ZIP. Файлы читаются последовательно блоками по 1MB,
+ * каждый блок сжимается независимо на общем пуле (как в pigz: блок
+ * заканчивается SYNC_FLUSH, последний - FINISH, словарь - хвост предыдущего
+ * блока, так что записи остаются обычным DEFLATE-потоком), а готовые блоки
+ * дописываются в выход строго по порядку. Число блоков в работе ограничено,
+ * поэтому память не зависит от размера файлов. Уже сжатые форматы
+ * (видео, фото, архивы) пишутся как STORED без прохода через Deflater.
+ */
+public class ParallelZipWriter implements AutoCloseable {
+    public static final int BLOCK_SIZE = 1024 * 1024;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private static final Set<String> COMPRESSED_EXTENSIONS = Set.of(
+        "mp4", "m4v", "mkv", "avi", "mov", "webm", "wmv", "flv",
+        "jpg", "jpeg", "png", "gif", "webp", "heic", "avif",
+        "mp3", "m4a", "aac", "ogg", "opus", "flac",
+        "zip", "7z", "rar", "gz", "tgz", "bz2", "xz", "zst", "lz4",
+        "docx", "xlsx", "pptx", "odt", "ods", "epub", "jar", "apk"
+    );
+
+    private static final ThreadLocal<Deflater> DEFLATERS =
+        ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+
+    private final OutputStream out;
+    private final ZipStreamWriter zip;
+    private final ExecutorService pool;
+    private final int maxBlocksInFlight;
+    private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+    private long entryCompressed = 0;
+
+    /**
+     * @param pool        пул сжатия (его размер и есть число задействованных ядер)
+     * @param parallelism сколько блоков одновременно держать в работе
+     */
+    public ParallelZipWriter(OutputStream out, ExecutorService pool, int parallelism) {
+        this.out = out;
+        this.zip = new ZipStreamWriter(out);
+        this.pool = pool;
+        this.maxBlocksInFlight = Math.max(2, parallelism * 2);
+    }
+
+    public static boolean isCompressed(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 && COMPRESSED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Добавляет файл. Возвращает после того, как все его блоки прочитаны и
+     * отправлены на сжатие; запись в выход может отставать на несколько блоков.
+     * Если файл не открылся, архив не меняется; ошибка чтения посреди файла
+     * портит архив, и его надо бросить.
+     *
+     * @param onRead вызывается с числом прочитанных байтов (для прогресса)
+     * @return сколько байтов файла записано в архив
+     */
+    public long addFile(String entryName, Path file, long modifiedMs, long sizeHint, LongConsumer onRead) throws IOException {
+        int method = isCompressed(entryName) ? ZipStreamWriter.STORED : ZipStreamWriter.DEFLATED;
+        try (InputStream in = Files.newInputStream(file)) {
+            enqueue(new Pending(entryName, method, modifiedMs, sizeHint));
+            CRC32 crc = new CRC32();
+            long size = 0;
+            byte[] previous = null;
+            byte[] block = in.readNBytes(BLOCK_SIZE);
+            while (true) {
+                byte[] next = block.length == BLOCK_SIZE ? in.readNBytes(BLOCK_SIZE) : new byte[0];
+                boolean last = next.length == 0;
+                crc.update(block);
+                size += block.length;
+                if (block.length > 0) {
+                    onRead.accept(block.length);
+                }
+                if (method == ZipStreamWriter.STORED) {
+                    if (block.length > 0) {
+                        enqueue(new Pending(CompletableFuture.completedFuture(block)));
+                    }
+                } else {
+                    byte[] input = block;
+                    byte[] dictionary = previous;
+                    enqueue(new Pending(pool.submit(() -> deflate(input, dictionary, last))));
+                }
+                if (last) {
+                    break;
+                }
+                previous = block;
+                block = next;
+            }
+            enqueue(new Pending(crc.getValue(), size));
+            return size;
+        }
+    }
+
+    public long getBytesWritten() {
+        return zip.getBytesWritten();
+    }
+
+    /** Дописывает оставшиеся блоки и центральный каталог. */
+    public void finish() throws IOException {
+        drain(0);
+        zip.finish();
+    }
+
+    /** Отменяет блоки в работе; поток не закрывается. */
+    public void abort() {
+        for (Pending p : pending) {
+            if (p.block != null) {
+                p.block.cancel(true);
+            }
+        }
+        pending.clear();
+    }
+
+    /** Закрывает выход. Без предшествующего finish() архив остается недописанным. */
+    @Override
+    public void close() throws IOException {
+        abort();
+        out.close();
+    }
+
+    private static byte[] deflate(byte[] input, byte[] dictionary, boolean last) {
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary, dictionary.length - DICTIONARY_SIZE, DICTIONARY_SIZE);
+        }
+        deflater.setInput(input);
+        if (last) {
+            deflater.finish();
+        }
+        byte[] out = new byte[input.length + input.length / 1000 + 64];
+        int length = 0;
+        while (true) {
+            if (length == out.length) {
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            int n = deflater.deflate(out, length, out.length - length, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+            length += n;
+            if (last ? deflater.finished() : length < out.length) {
+                break;
+            }
+        }
+        return length == out.length ? out : Arrays.copyOf(out, length);
+    }
+
+    private void enqueue(Pending p) throws IOException {
+        pending.addLast(p);
+        drain(maxBlocksInFlight);
+    }
+
+    /** Пишет готовые элементы по порядку, пока в очереди больше limit. */
+    private void drain(int limit) throws IOException {
+        while (pending.size() > limit) {
+            Pending p = pending.removeFirst();
+            if (p.entryName != null) {
+                zip.putEntry(p.entryName, p.method, p.modifiedMs, p.sizeHint);
+                entryCompressed = 0;
+            } else if (p.block != null) {
+                byte[] data = await(p.block);
+                zip.write(data, 0, data.length);
+                entryCompressed += data.length;
+            } else {
+                zip.closeEntry(p.crc, entryCompressed, p.size);
+            }
+        }
+    }
+
+    private byte[] await(Future<byte[]> block) throws IOException {
+        try {
+            return block.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abort();
+            throw new IOException("Interrupted", e);
+        } catch (ExecutionException e) {
+            abort();
+            throw new IOException("Compression failed", e.getCause());
+        }
+    }
+
+    /** Элемент очереди записи: начало записи, блок данных или конец записи. */
+    private static class Pending {
+        String entryName;
+        int method;
+        long modifiedMs;
+        long sizeHint;
+        Future<byte[]> block;
+        long crc;
+        long size;
+
+        Pending(String entryName, int method, long modifiedMs, long sizeHint) {
+            this.entryName = entryName;
+            this.method = method;
+            this.modifiedMs = modifiedMs;
+            this.sizeHint = sizeHint;
+        }
+
+        Pending(Future<byte[]> block) {
+            this.block = block;
+        }
+
+        Pending(long crc, long size) {
+            this.crc = crc;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package org.ejectfb.ejectcloud.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipException;
+
+/**
+ * Низкоуровневая запись ZIP в поток без перемотки: локальный заголовок,
+ * уже сжатые данные, data descriptor, в конце центральный каталог.
+ * Сжатие делает вызывающий код (в том числе параллельно), здесь только формат.
+ * ZIP64 включается для записей от 4GB, при смещениях за 4GB и при числе
+ * записей от 65535. Имена всегда в UTF-8.
+ */
+public class ZipStreamWriter implements AutoCloseable {
+    public static final int STORED = 0;
+    public static final int DEFLATED = 8;
+
+    private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+    // сжатый размер несжимаемых данных чуть больше исходного
+    private static final long ZIP64_ENTRY_THRESHOLD = 0xFFFF0000L;
+    private static final int FLAG_DATA_DESCRIPTOR = 0x0008;
+    private static final int FLAG_UTF8 = 0x0800;
+
+    private final OutputStream out;
+    private final List<Entry> entries = new ArrayList<>();
+    private final byte[] scratch = new byte[64];
+    private long written = 0;
+    private Entry current;
+    private boolean finished = false;
+
+    public ZipStreamWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Начинает запись.
+     *
+     * @param sizeHint ожидаемый несжатый размер: по нему решается, нужен ли ZIP64
+     */
+    public void putEntry(String name, int method, long modifiedMs, long sizeHint) throws IOException {
+        if (current != null) {
+            throw new ZipException("Previous entry is not closed");
+        }
+        Entry entry = new Entry();
+        entry.name = name.getBytes(StandardCharsets.UTF_8);
+        entry.method = method;
+        entry.dosTime = toDosTime(modifiedMs);
+        entry.offset = written;
+        entry.zip64 = sizeHint >= ZIP64_ENTRY_THRESHOLD;
+
+        writeInt(0x04034b50L);
+        writeShort(entry.zip64 ? 45 : 20);
+        writeShort(FLAG_DATA_DESCRIPTOR | FLAG_UTF8);
+        writeShort(method);
+        writeInt(entry.dosTime);
+        writeInt(0); // crc и размеры - в data descriptor
+        writeInt(entry.zip64 ? ZIP64_LIMIT : 0);
+        writeInt(entry.zip64 ? ZIP64_LIMIT : 0);
+        writeShort(entry.name.length);
+        writeShort(entry.zip64 ? 20 : 0);
+        writeBytes(entry.name, 0, entry.name.length);
+        if (entry.zip64) {
+            writeShort(0x0001);
+            writeShort(16);
+            writeLong(0);
+            writeLong(0);
+        }
+        current = entry;
+    }
+
+    /** Данные текущей записи в том виде, в каком они лягут в архив. */
+    public void write(byte[] data, int off, int len) throws IOException {
+        writeBytes(data, off, len);
+    }
+
+    public void closeEntry(long crc, long compressedSize, long size) throws IOException {
+        Entry entry = current;
+        if (entry == null) {
+            throw new ZipException("No current entry");
+        }
+        if (!entry.zip64 && (compressedSize >= ZIP64_LIMIT || size >= ZIP64_LIMIT)) {
+            throw new ZipException("Entry grew beyond 4GB while archiving: " + new String(entry.name, StandardCharsets.UTF_8));
+        }
+        entry.crc = crc;
+        entry.compressedSize = compressedSize;
+        entry.size = size;
+
+        writeInt(0x08074b50L);
+        writeInt(crc);
+        if (entry.zip64) {
+            writeLong(compressedSize);
+            writeLong(size);
+        } else {
+            writeInt(compressedSize);
+            writeInt(size);
+        }
+        entries.add(entry);
+        current = null;
+    }
+
+    /** Байт записано в поток (размер архива на текущий момент). */
+    public long getBytesWritten() {
+        return written;
+    }
+
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        if (current != null) {
+            throw new ZipException("Last entry is not closed");
+        }
+        long cdOffset = written;
+        for (Entry entry : entries) {
+            writeCentralHeader(entry);
+        }
+        long cdSize = written - cdOffset;
+
+        boolean zip64 = entries.size() >= 0xFFFF || cdOffset >= ZIP64_LIMIT || cdSize >= ZIP64_LIMIT;
+        if (zip64) {
+            long zip64EndOffset = written;
+            writeInt(0x06064b50L);
+            writeLong(44);
+            writeShort(45);
+            writeShort(45);
+            writeInt(0);
+            writeInt(0);
+            writeLong(entries.size());
+            writeLong(entries.size());
+            writeLong(cdSize);
+            writeLong(cdOffset);
+
+            writeInt(0x07064b50L);
+            writeInt(0);
+            writeLong(zip64EndOffset);
+            writeInt(1);
+        }
+        writeInt(0x06054b50L);
+        writeShort(0);
+        writeShort(0);
+        writeShort(zip64 ? 0xFFFF : entries.size());
+        writeShort(zip64 ? 0xFFFF : entries.size());
+        writeInt(zip64 ? ZIP64_LIMIT : cdSize);
+        writeInt(zip64 ? ZIP64_LIMIT : cdOffset);
+        writeShort(0);
+        out.flush();
+        finished = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeCentralHeader(Entry entry) throws IOException {
+        boolean sizes64 = entry.compressedSize >= ZIP64_LIMIT || entry.size >= ZIP64_LIMIT;
+        boolean offset64 = entry.offset >= ZIP64_LIMIT;
+        int extraLength = (sizes64 ? 16 : 0) + (offset64 ? 8 : 0);
+
+        writeInt(0x02014b50L);
+        writeShort(extraLength > 0 ? 45 : 20);
+        writeShort(extraLength > 0 || entry.zip64 ? 45 : 20);
+        writeShort(FLAG_DATA_DESCRIPTOR | FLAG_UTF8);
+        writeShort(entry.method);
+        writeInt(entry.dosTime);
+        writeInt(entry.crc);
+        writeInt(sizes64 ? ZIP64_LIMIT : entry.compressedSize);
+        writeInt(sizes64 ? ZIP64_LIMIT : entry.size);
+        writeShort(entry.name.length);
+        writeShort(extraLength > 0 ? extraLength + 4 : 0);
+        writeShort(0); // комментарий
+        writeShort(0); // номер диска
+        writeShort(0); // внутренние атрибуты
+        writeInt(0);   // внешние атрибуты
+        writeInt(offset64 ? ZIP64_LIMIT : entry.offset);
+        writeBytes(entry.name, 0, entry.name.length);
+        if (extraLength > 0) {
+            writeShort(0x0001);
+            writeShort(extraLength);
+            if (sizes64) {
+                writeLong(entry.size);
+                writeLong(entry.compressedSize);
+            }
+            if (offset64) {
+                writeLong(entry.offset);
+            }
+        }
+    }
+
+    private static long toDosTime(long modifiedMs) {
+        LocalDateTime t = LocalDateTime.ofInstant(Instant.ofEpochMilli(modifiedMs), ZoneId.systemDefault());
+        if (t.getYear() < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return ((long) (t.getYear() - 1980) << 25)
+            | ((long) t.getMonthValue() << 21)
+            | ((long) t.getDayOfMonth() << 16)
+            | ((long) t.getHour() << 11)
+            | ((long) t.getMinute() << 5)
+            | ((long) t.getSecond() >> 1);
+    }
+
+    private void writeShort(int v) throws IOException {
+        scratch[0] = (byte) v;
+        scratch[1] = (byte) (v >>> 8);
+        writeBytes(scratch, 0, 2);
+    }
+
+    private void writeInt(long v) throws IOException {
+        for (int i = 0; i < 4; i++) {
+            scratch[i] = (byte) (v >>> (8 * i));
+        }
+        writeBytes(scratch, 0, 4);
+    }
+
+    private void writeLong(long v) throws IOException {
+        for (int i = 0; i < 8; i++) {
+            scratch[i] = (byte) (v >>> (8 * i));
+        }
+        writeBytes(scratch, 0, 8);
+    }
+
+    private void writeBytes(byte[] data, int off, int len) throws IOException {
+        out.write(data, off, len);
+        written += len;
+    }
+
+    private static class Entry {
+        byte[] name;
+        int method;
+        long dosTime;
+        long offset;
+        boolean zip64;
+        long crc;
+        long compressedSize;
+        long size;
+    }
+}
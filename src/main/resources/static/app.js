@@ -57,6 +57,13 @@
             .map(x => x.id);
     }
 
+    function formatEta(seconds) {
+        if (seconds < 60) return seconds + ' с';
+        const m = Math.floor(seconds / 60);
+        if (m < 60) return m + ' мин ' + (seconds % 60) + ' с';
+        return Math.floor(m / 60) + ' ч ' + (m % 60) + ' мин';
+    }
+
     function formatTimestamp() {
         const d = new Date();
         const pad = (n) => String(n).padStart(2, '0');
@@ -625,6 +632,7 @@
     
     function startTokenRefresh() {
         if (refreshInterval) clearInterval(refreshInterval);
+        openProgressEvents();
         
         // Обновляем токен каждые 10 минут
         refreshInterval = setInterval(() => {
@@ -1084,19 +1092,24 @@
         
         // Обновляем токен перед каждой загрузкой
         tryRefreshToken().then(() => {
-            const fd = new FormData();
-            fd.append('file', file);
-            fd.append('token', getAuthToken());
-            if (path) fd.append('path', path);
+            // Большие файлы грузим частями: обрыв связи не обнуляет уже переданное
+            if (file.size >= CHUNKED_UPLOAD_MIN_SIZE) {
+                startChunkedUpload();
+                return;
+            }
+
+            // Файл уходит телом запроса без multipart: сервер пишет его сразу в папку пользователя
+            let url = `/api/files/upload/stream?token=${encodeURIComponent(getAuthToken())}&filename=${encodeURIComponent(file.name)}`;
+            if (path) url += `&path=${encodeURIComponent(path)}`;
 
             // Получаем таймаут из конфига
             fetch(`/api/files/config/upload-timeout?token=${encodeURIComponent(getAuthToken())}`)
                 .then(r => r.json())
                 .then(config => {
-                    startUpload(config.timeout, fd);
+                    startUpload(config.timeout, url);
                 })
                 .catch(() => {
-                    startUpload(10800000, fd); // fallback 3 часа
+                    startUpload(10800000, url); // fallback 3 часа
                 });
         }).catch(() => {
             // Ошибка обновления токена
@@ -1104,7 +1117,7 @@
             processUploadQueue();
         });
             
-        function startUpload(timeout, fd) {
+        function startUpload(timeout, url) {
             const xhr = new XMLHttpRequest();
             let startTime = Date.now();
             let lastLoaded = 0;
@@ -1136,31 +1149,7 @@
             
             xhr.onload = function() {
                 clearInterval(tokenRefreshInterval);
-                if (xhr.status === 200) {
-                    try {
-                        const response = JSON.parse(xhr.responseText);
-                        if (response.renamed) {
-                            showNotification(`Файл "${response.originalName}" переименован в "${response.newName}"`, 'warning');
-                        }
-                    } catch (e) {
-                        // Игнорируем ошибки парсинга
-                    }
-                    window.uploadedFiles.push(file.name);
-                    uploadDoneBytes += file.size;
-                    currentUploadLoaded = 0;
-                    currentUploadTotal = 0;
-                    currentUploadFile = null;
-                    updateUploadProgressDisplay();
-                    processUploadQueue();
-                } else {
-                    showNotification(`Ошибка загрузки ${file.name}: ${xhr.responseText}`, 'error');
-                    uploadDoneBytes += file.size;
-                    currentUploadLoaded = 0;
-                    currentUploadTotal = 0;
-                    currentUploadFile = null;
-                    updateUploadProgressDisplay();
-                    processUploadQueue();
-                }
+                finishUpload(xhr.status, xhr.responseText);
             };
             
             xhr.onerror = function() {
@@ -1186,10 +1175,156 @@
             };
             
             xhr.timeout = timeout;
-            xhr.open('POST', '/api/files/upload');
-            xhr.send(fd);
+            xhr.open('POST', url);
+            xhr.setRequestHeader('Content-Type', 'application/octet-stream');
+            xhr.send(file);
+        }
+
+        function finishUpload(status, responseText) {
+            if (status === 200) {
+                try {
+                    const response = JSON.parse(responseText);
+                    if (response.renamed) {
+                        showNotification(`Файл "${response.originalName}" переименован в "${response.newName}"`, 'warning');
+                    }
+                } catch (e) {
+                    // Игнорируем ошибки парсинга
+                }
+                window.uploadedFiles.push(file.name);
+            } else {
+                showNotification(`Ошибка загрузки ${file.name}: ${responseText}`, 'error');
+            }
+            uploadDoneBytes += file.size;
+            currentUploadLoaded = 0;
+            currentUploadTotal = 0;
+            currentUploadFile = null;
+            updateUploadProgressDisplay();
+            processUploadQueue();
+        }
+
+        function startChunkedUpload() {
+            const tokenRefreshInterval = setInterval(() => {
+                tryRefreshToken();
+            }, 5 * 60 * 1000);
+            uploadInChunks(file, path)
+                .then(result => {
+                    clearInterval(tokenRefreshInterval);
+                    finishUpload(result.status, result.text);
+                })
+                .catch(e => {
+                    clearInterval(tokenRefreshInterval);
+                    finishUpload(0, (e && e.message) || 'Соединение прервано');
+                });
         }
     }
+
+    // Загрузка частями: сессия на сервере помнит принятые части, поэтому после
+    // обрыва (или перезагрузки страницы) досылается только недостающее
+    const CHUNKED_UPLOAD_MIN_SIZE = 64 * 1024 * 1024;
+    const CHUNK_PARALLELISM = 3;
+    const CHUNK_RETRIES = 5;
+
+    async function uploadInChunks(file, path) {
+        const sessionKey = 'eject_upload_' + [path || '', file.name, file.size, file.lastModified].join('|');
+        const base = '/api/files/upload/session';
+        let session = null;
+
+        const savedId = localStorage.getItem(sessionKey);
+        if (savedId) {
+            const r = await fetch(`${base}/${encodeURIComponent(savedId)}?token=${encodeURIComponent(getAuthToken())}`);
+            if (r.ok) session = await r.json();
+        }
+        if (!session) {
+            let url = `${base}?token=${encodeURIComponent(getAuthToken())}&filename=${encodeURIComponent(file.name)}&size=${file.size}`;
+            if (path) url += `&path=${encodeURIComponent(path)}`;
+            const r = await fetch(url, { method: 'POST' });
+            if (!r.ok) return { status: r.status, text: await r.text() };
+            session = await r.json();
+            localStorage.setItem(sessionKey, session.sessionId);
+        }
+
+        const chunkSize = session.chunkSize;
+        const received = new Set();
+        (session.received || []).forEach(([start, end]) => {
+            for (let offset = start; offset <= end; offset += chunkSize) received.add(offset);
+        });
+        const pending = [];
+        for (let offset = 0; offset < file.size; offset += chunkSize) {
+            if (!received.has(offset)) pending.push(offset);
+        }
+
+        let doneBytes = session.receivedBytes || 0;
+        const inFlight = new Map();
+        let lastTime = Date.now();
+        let lastBytes = doneBytes;
+        let speed = 0;
+        const reportProgress = () => {
+            let loaded = doneBytes;
+            inFlight.forEach(v => loaded += v);
+            const now = Date.now();
+            if (now - lastTime > 500) {
+                speed = (loaded - lastBytes) / ((now - lastTime) / 1000);
+                lastTime = now;
+                lastBytes = loaded;
+            }
+            updateUploadProgress(loaded / Math.max(1, file.size) * 100, loaded, file.size, speed);
+        };
+
+        const sendChunk = (offset) => new Promise((resolve, reject) => {
+            const blob = file.slice(offset, Math.min(offset + chunkSize, file.size));
+            const xhr = new XMLHttpRequest();
+            xhr.upload.addEventListener('progress', (e) => {
+                inFlight.set(offset, e.loaded);
+                reportProgress();
+            });
+            xhr.onload = () => {
+                inFlight.delete(offset);
+                if (xhr.status === 200) {
+                    doneBytes += blob.size;
+                    reportProgress();
+                    resolve();
+                } else {
+                    reject({ status: xhr.status, text: xhr.responseText });
+                }
+            };
+            xhr.onerror = () => {
+                inFlight.delete(offset);
+                reject({ status: 0, text: 'Соединение прервано' });
+            };
+            xhr.open('PUT', `${base}/${encodeURIComponent(session.sessionId)}?token=${encodeURIComponent(getAuthToken())}&offset=${offset}`);
+            xhr.setRequestHeader('Content-Type', 'application/octet-stream');
+            xhr.send(blob);
+        });
+
+        const worker = async () => {
+            while (pending.length > 0) {
+                const offset = pending.shift();
+                for (let attempt = 1; ; attempt++) {
+                    try {
+                        await sendChunk(offset);
+                        break;
+                    } catch (e) {
+                        // ошибки сервера (квота, неверная сессия) не повторяем
+                        if ((e.status >= 400 && e.status < 500) || e.status === 507 || attempt >= CHUNK_RETRIES) throw e;
+                        await new Promise(r => setTimeout(r, 1000 * attempt));
+                    }
+                }
+            }
+        };
+
+        try {
+            await Promise.all(Array.from({ length: CHUNK_PARALLELISM }, worker));
+        } catch (e) {
+            // сессию забываем только при отказе сервера (4xx); после 5xx ее можно продолжить
+            if (e.status >= 400 && e.status < 500) localStorage.removeItem(sessionKey);
+            return { status: e.status || 0, text: e.text || 'Соединение прервано' };
+        }
+
+        const r = await fetch(`${base}/${encodeURIComponent(session.sessionId)}/complete?token=${encodeURIComponent(getAuthToken())}`, { method: 'POST' });
+        // при 5xx сервер сохраняет сессию и файл - повторная загрузка только завершит ее
+        if (r.status < 500) localStorage.removeItem(sessionKey);
+        return { status: r.status, text: await r.text() };
+    }
     
     function showUploadProgress() {
         // keep legacy div unused; new UI lives in TaskCenter
@@ -1508,6 +1643,7 @@
             clearInterval(refreshInterval);
             refreshInterval = null;
         }
+        closeProgressEvents();
         
         localStorage.removeItem('eject_access_token');
         localStorage.removeItem('eject_refresh_token');
@@ -1934,6 +2070,134 @@
         updateSelectAllCheckbox();
     };
 
+    // Прогресс архивов и загрузок приходит по одному SSE-соединению на браузер:
+    // поток держит вкладка, получившая блокировку (Web Locks), и пересылает
+    // события остальным вкладкам через BroadcastChannel. Когда она закрывается,
+    // блокировку и поток подхватывает следующая вкладка. Без этих API каждая
+    // вкладка открывает свой поток
+    const PROGRESS_CHANNEL = 'eject-progress-events';
+    let progressSource = null;
+    let progressRetryTimer = null;
+    let progressReloadTimer = null;
+    let progressChannel = null;
+    let progressLockAbort = null;
+    let progressLockRelease = null;
+    // архивы, запущенные в этой вкладке: только она открывает готовый архив
+    const archiveAutoOpen = new Set();
+    const archiveLastState = {};
+
+    function openProgressEvents() {
+        if (!getAuthToken()) return;
+        if (!('locks' in navigator) || typeof BroadcastChannel === 'undefined') {
+            connectProgressEvents();
+            return;
+        }
+        if (progressChannel) return;
+        progressChannel = new BroadcastChannel(PROGRESS_CHANNEL);
+        progressChannel.onmessage = e => applyProgressEvent(e.data.type, e.data.data);
+        progressLockAbort = new AbortController();
+        navigator.locks.request(PROGRESS_CHANNEL, { signal: progressLockAbort.signal }, () => new Promise(resolve => {
+            progressLockRelease = resolve;
+            connectProgressEvents();
+        })).catch(() => {});
+    }
+
+    function connectProgressEvents() {
+        if (progressSource || !getAuthToken() || typeof EventSource === 'undefined') return;
+        const source = new EventSource(`/api/files/events?token=${encodeURIComponent(getAuthToken())}`);
+        progressSource = source;
+        source.addEventListener('archive', e => relayProgressEvent('archive', e.data));
+        source.addEventListener('upload', e => relayProgressEvent('upload', e.data));
+        source.onerror = () => {
+            // обрыв EventSource переподключает сам; закрытое соединение (например,
+            // истек токен в адресе) открываем заново с текущим токеном
+            if (source.readyState === EventSource.CLOSED && progressSource === source) {
+                progressSource = null;
+                clearTimeout(progressRetryTimer);
+                progressRetryTimer = setTimeout(connectProgressEvents, 5000);
+            }
+        };
+    }
+
+    function relayProgressEvent(type, raw) {
+        let data;
+        try { data = JSON.parse(raw); } catch { return; }
+        applyProgressEvent(type, data);
+        if (progressChannel) progressChannel.postMessage({ type, data });
+    }
+
+    function applyProgressEvent(type, data) {
+        try {
+            if (type === 'archive') applyArchiveEvent(data);
+            else if (type === 'upload') applyUploadEvent(data);
+        } catch {}
+    }
+
+    function closeProgressEvents() {
+        clearTimeout(progressRetryTimer);
+        if (progressSource) {
+            progressSource.close();
+            progressSource = null;
+        }
+        if (progressLockAbort) {
+            progressLockAbort.abort();
+            progressLockAbort = null;
+        }
+        if (progressLockRelease) {
+            progressLockRelease();
+            progressLockRelease = null;
+        }
+        if (progressChannel) {
+            progressChannel.close();
+            progressChannel = null;
+        }
+    }
+
+    function applyArchiveEvent(j2) {
+        if (!j2 || !j2.jobId || !window.TaskCenter || !window.TaskCenter.list) return;
+        const jobId = j2.jobId;
+        const tasks = window.TaskCenter.list().filter(t => t.meta && t.meta.type === 'archive' && t.meta.jobId === jobId);
+        const lines = j2.state === 'queued' && j2.queuePosition
+            ? ['В очереди: ' + j2.queuePosition]
+            : (j2.message ? [j2.message] : []);
+        if (j2.state === 'running' && j2.filesTotal) {
+            let progress = `${j2.filesDone}/${j2.filesTotal} файлов, ${formatFileSize(j2.bytesDone || 0)} / ${formatFileSize(j2.bytesTotal || 0)}`;
+            if (j2.bytesPerSec > 0) progress += `, ${formatFileSize(j2.bytesPerSec)}/с`;
+            if (j2.etaSeconds >= 0) progress += `, осталось ${formatEta(j2.etaSeconds)}`;
+            lines.push(progress);
+        }
+        const patch = {
+            state: j2.state,
+            percent: typeof j2.percent === 'number' ? j2.percent : 0,
+            lines
+        };
+        if (j2.state === 'done') {
+            patch.percent = 100;
+            patch.downloadUrl = `/api/files/archive/download?token=${encodeURIComponent(getAuthToken())}&jobId=${encodeURIComponent(jobId)}`;
+        }
+        tasks.forEach(t => window.TaskCenter.update(t.id, patch));
+
+        // событие и ответ на запрос статуса могут прийти оба: открываем один раз
+        if (j2.state === 'done' && archiveLastState[jobId] !== 'done' && archiveAutoOpen.delete(jobId)) {
+            // Desktop best-effort auto download (mobile browsers may block)
+            if (!isMobileLayout()) {
+                try { window.open(patch.downloadUrl); } catch {}
+            }
+        }
+        archiveLastState[jobId] = j2.state;
+        if (j2.state === 'error' || j2.state === 'cancelled') {
+            archiveAutoOpen.delete(jobId);
+        }
+    }
+
+    function applyUploadEvent(u) {
+        // файл, загруженный по частям в другой вкладке или на другом устройстве,
+        // появляется в списке без перезагрузки страницы
+        if (!u || u.state !== 'done' || isUploading) return;
+        clearTimeout(progressReloadTimer);
+        progressReloadTimer = setTimeout(loadFiles, 300);
+    }
+
     function startArchiveAndDownload(folderPath, fileName, title) {
         const token = getAuthToken();
         const body = new URLSearchParams();
@@ -1955,53 +2219,37 @@
             .then(r => r.json().then(j => ({ ok: r.ok, j })))
             .then(({ ok, j }) => {
                 if (!ok) throw new Error((j && j.error) ? j.error : 'Ошибка архивации');
+                if (j.streaming) {
+                    // сервер собирает архив прямо в ответ: скачивание начинается сразу
+                    let url = `/api/files/archive/download?token=${encodeURIComponent(token)}&path=${encodeURIComponent(folderPath || '')}`;
+                    if (fileName) url += `&fileName=${encodeURIComponent(fileName)}`;
+                    if (window.TaskCenter && window.TaskCenter.update && taskId) {
+                        window.TaskCenter.update(taskId, { state: 'done', percent: 100, downloadUrl: url });
+                    }
+                    if (!isMobileLayout()) {
+                        try { window.open(url); } catch {}
+                    }
+                    return;
+                }
                 const jobId = j.jobId;
                 if (window.TaskCenter && window.TaskCenter.update && taskId) {
-                    window.TaskCenter.update(taskId, { state: 'running', lines: ['job ' + jobId] });
+                    window.TaskCenter.update(taskId, { state: 'running', lines: ['job ' + jobId], meta: { type: 'archive', jobId } });
                 }
-
-                const poll = setInterval(() => {
-                    fetch(`/api/files/archive/status?token=${encodeURIComponent(token)}&jobId=${encodeURIComponent(jobId)}`)
-                        .then(r2 => r2.json().then(j2 => ({ ok: r2.ok, j2 })))
-                        .then(({ ok: ok2, j2 }) => {
-                            if (!ok2) throw new Error((j2 && j2.error) ? j2.error : 'Ошибка статуса');
-                            if (window.TaskCenter && window.TaskCenter.update && taskId) {
-                                window.TaskCenter.update(taskId, {
-                                    state: j2.state,
-                                    percent: typeof j2.percent === 'number' ? j2.percent : 0,
-                                    lines: j2.message ? [j2.message] : []
-                                });
-                            }
-
-                            if (j2.state === 'done') {
-                                clearInterval(poll);
-                                const url = `/api/files/archive/download?token=${encodeURIComponent(token)}&jobId=${encodeURIComponent(jobId)}`;
-
-                                if (window.TaskCenter && window.TaskCenter.update && taskId) {
-                                    window.TaskCenter.update(taskId, {
-                                        state: 'done',
-                                        percent: 100,
-                                        downloadUrl: url,
-                                        meta: { type: 'archive', jobId }
-                                    });
-                                }
-
-                                // Desktop best-effort auto download (mobile browsers may block)
-                                if (!isMobileLayout()) {
-                                    try { window.open(url); } catch {}
-                                }
-                            }
-                            if (j2.state === 'error') {
-                                clearInterval(poll);
-                            }
-                        })
-                        .catch(err => {
-                            clearInterval(poll);
-                            if (window.TaskCenter && window.TaskCenter.update && taskId) {
-                                window.TaskCenter.update(taskId, { state: 'error', lines: [String(err.message || err)] });
-                            }
-                        });
-                }, 800);
+                // дальше прогресс приходит событиями; один запрос статуса - на случай,
+                // если задача завершилась (архив из кеша) раньше, чем задача появилась во вкладке
+                archiveAutoOpen.add(jobId);
+                openProgressEvents();
+                fetch(`/api/files/archive/status?token=${encodeURIComponent(token)}&jobId=${encodeURIComponent(jobId)}`)
+                    .then(r2 => r2.json().then(j2 => ({ ok: r2.ok, j2 })))
+                    .then(({ ok: ok2, j2 }) => {
+                        if (!ok2) throw new Error((j2 && j2.error) ? j2.error : 'Ошибка статуса');
+                        applyArchiveEvent(Object.assign({ jobId }, j2));
+                    })
+                    .catch(err => {
+                        if (window.TaskCenter && window.TaskCenter.update && taskId) {
+                            window.TaskCenter.update(taskId, { state: 'error', lines: [String(err.message || err)] });
+                        }
+                    });
             })
             .catch(err => {
                 if (window.TaskCenter && window.TaskCenter.update && taskId) {
@@ -2054,18 +2302,31 @@
         });
     };
 
+    // Групповые операции уходят одним запросом: сервер применяет их по порядку
+    // и сохраняет ссылки один раз, а в ответе - результат по каждому элементу
+    function runBatch(operations) {
+        const token = getAuthToken();
+        return fetch(`/api/files/batch?token=${encodeURIComponent(token)}`, {
+            method: 'POST',
+            headers: { 'Content-Type': 'application/json' },
+            body: JSON.stringify(operations)
+        })
+            .then(r => r.json().then(j => ({ ok: r.ok, j })))
+            .then(({ ok, j }) => {
+                if (!ok) throw new Error((j && j.error) ? j.error : 'Ошибка операции');
+                return j;
+            });
+    }
+
     window.bulkMove = function() {
         const files = selectedByKind('file');
         const folders = selectedByKind('folder');
-        if (files.length === 0) {
-            showNotification('Для перемещения выберите файлы', 'warning');
+        if (files.length + folders.length === 0) {
+            showNotification('Для перемещения выберите файлы или папки', 'warning');
             return;
         }
-        if (folders.length > 0) {
-            showNotification('Папки не перемещаются группой (будут проигнорированы)', 'warning');
-        }
 
-        document.getElementById('moveFileName').textContent = `Переместить ${files.length} файлов:`;
+        document.getElementById('moveFileName').textContent = `Переместить ${files.length + folders.length} элементов:`;
 
         const folderTree = document.getElementById('folderTree');
         folderTree.innerHTML = '';
@@ -2089,6 +2350,7 @@
         selectedTargetFolder = '';
         selectedMoveFile = 'bulk';
         window._bulkMoveFileIds = files;
+        window._bulkMoveFolders = folders;
         document.getElementById('moveModal').style.display = 'block';
     };
 
@@ -2099,24 +2361,17 @@
         if (total === 0) return;
 
         showConfirm(`Переместить ${total} элементов в корзину?`, () => {
-            const token = getAuthToken();
-            const promises = [];
-            files.forEach(fileId => {
-                promises.push(fetch(`/api/files/delete?id=${encodeURIComponent(fileId)}&token=${encodeURIComponent(token)}`, { method: 'DELETE' }));
-            });
-            folders.forEach(folderPath => {
-                promises.push(fetch(`/api/files/folder?path=${encodeURIComponent(folderPath)}&token=${encodeURIComponent(token)}`, { method: 'DELETE' }));
-            });
+            const operations = files.map(path => ({ op: 'delete', path, folder: false }))
+                .concat(folders.map(path => ({ op: 'delete', path, folder: true })));
 
-            Promise.all(promises.map(p => p.catch(e => ({ error: true, message: e.message }))))
-                .then(responses => {
-                    const failed = responses.filter(r => !r.ok && r.error !== true);
-                    const success = responses.filter(r => r.ok);
-                    if (success.length > 0) {
-                        showNotification(`${success.length} элементов перемещено в корзину`, 'success');
+            runBatch(operations)
+                .then(j => {
+                    if (j.succeeded > 0) {
+                        showNotification(`${j.succeeded} элементов перемещено в корзину`, 'success');
                     }
-                    if (failed.length > 0) {
-                        showNotification(`Ошибка удаления ${failed.length} элементов`, 'error');
+                    if (j.failed > 0) {
+                        const first = j.results.find(r => !r.ok);
+                        showNotification(`Ошибка удаления ${j.failed} элементов: ${first.error}`, 'error');
                     }
 
                     clearSelection();
@@ -2126,31 +2381,29 @@
         });
     };
 
-    // confirmMove support for bulk move (files only)
+    // confirmMove support for bulk move
     const originalConfirmMove = window.confirmMove;
     window.confirmMove = function() {
         if (selectedMoveFile === 'bulk') {
             const files = window._bulkMoveFileIds || selectedByKind('file');
-            if (files.length === 0) return;
+            const folders = window._bulkMoveFolders || selectedByKind('folder');
+            const total = files.length + folders.length;
+            if (total === 0) return;
 
-            const token = getAuthToken();
-            const promises = files.map(fileId =>
-                fetch(`/api/files/move?fileId=${encodeURIComponent(fileId)}&targetFolder=${encodeURIComponent(selectedTargetFolder)}&token=${encodeURIComponent(token)}`, {
-                    method: 'POST'
-                })
-            );
+            const operations = files.concat(folders)
+                .map(path => ({ op: 'move', path, target: selectedTargetFolder }));
 
-            Promise.all(promises.map(p => p.then(r => r.json().catch(() => ({}))).catch(() => ({ error: true }))))
-                .then(results => {
-                    const failed = results.filter(r => r.error);
-                    const renamed = results.filter(r => r.renamed);
+            runBatch(operations)
+                .then(j => {
+                    const renamed = j.results.filter(r => r.ok && r.newName);
 
-                    if (failed.length > 0) {
-                        showNotification(`Ошибка перемещения ${failed.length} файлов`, 'error');
+                    if (j.failed > 0) {
+                        const first = j.results.find(r => !r.ok);
+                        showNotification(`Ошибка перемещения ${j.failed} из ${total} элементов: ${first.error}`, 'error');
                     } else if (renamed.length > 0) {
-                        showNotification(`${files.length} файлов перемещено, ${renamed.length} переименовано`, 'warning');
+                        showNotification(`${total} элементов перемещено, ${renamed.length} переименовано`, 'warning');
                     } else {
-                        showNotification(`${files.length} файлов успешно перемещено`, 'success');
+                        showNotification(`${total} элементов успешно перемещено`, 'success');
                     }
                     clearSelection();
                     loadFiles();